@@ -0,0 +1,323 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * name: Enliang Wu
+ * email: enliangw@andrew.cmu.edu
+ *
+ * This class is a small benchmark harness that works like JMH in spirit.
+ * Every benchmark gets a fresh set up, is warmed up for a few iterations and then measured for a few more.
+ * Each iteration runs the operation for about one second; the score is the average time per operation,
+ * reported with the standard deviation over the measured iterations.
+ * The result of every operation is consumed, so the JIT can not remove the work.
+ * Operations that need a fresh state (a repair needs a broken chain) prepare it before each call,
+ * outside the measured time. Operations run on several threads report the throughput of all threads.
+ *
+ * usage: java Bench [-l] [-wi warmups] [-i iterations] [-t seconds] [-o results.csv] [-b baseline.csv] [regex]
+ * -l lists the benchmarks, regex selects the benchmarks whose name and parameters match,
+ * -o writes the scores as CSV and -b compares the scores with a CSV written by an earlier run.
+ */
+public class Bench {
+
+    /**
+     * One benchmarked operation, its result is consumed by the harness
+     */
+    interface Operation {
+        Object run() throws Exception;
+    }
+
+    /**
+     * Work that is done around the measured operations
+     */
+    interface Action {
+        void run() throws Exception;
+    }
+
+    /**
+     * A benchmark: an operation with its parameters and set up
+     */
+    static final class Case {
+        private final String name;
+        private final String params;
+        private final Operation operation;
+        private Action setUp = () -> { };
+        private Action beforeEach;
+        private Action tearDown = () -> { };
+        private int threads = 1;
+
+        private Case(String name, String params, Operation operation) {
+            this.name = name;
+            this.params = params;
+            this.operation = operation;
+        }
+
+        /** run once before the benchmark is warmed up */
+        Case setUp(Action setUp) {
+            this.setUp = setUp;
+            return this;
+        }
+
+        /** run before every operation, not measured */
+        Case beforeEach(Action beforeEach) {
+            this.beforeEach = beforeEach;
+            return this;
+        }
+
+        /** run once after the benchmark has been measured */
+        Case tearDown(Action tearDown) {
+            this.tearDown = tearDown;
+            return this;
+        }
+
+        /** run the operation on this many threads at once */
+        Case threads(int threads) {
+            this.threads = threads;
+            return this;
+        }
+
+        private String id() {
+            return params.isEmpty() ? name : name + " " + params;
+        }
+    }
+
+    private final List<Case> cases = new ArrayList<>();
+    private int warmups = 3;
+    private int iterations = 5;
+    private long iterationNanos = 1_000_000_000L;
+
+    // results are written here so the work that produced them can not be eliminated
+    private volatile Object sink;
+
+    /**
+     * Add a benchmark
+     * @param name - name of the benchmark, Class.method by convention
+     * @param params - parameters of this variant, for example "difficulty=3"
+     * @param operation - the measured operation
+     * @return the benchmark, to add set up and tear down
+     */
+    Case add(String name, String params, Operation operation) {
+        Case benchmark = new Case(name, params, operation);
+        cases.add(benchmark);
+        return benchmark;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Bench bench = new Bench();
+        BlockBenchmarks.register(bench);
+        ChainBenchmarks.register(bench);
+        CodecBenchmarks.register(bench);
+        LoopbackBenchmarks.register(bench);
+
+        Pattern filter = Pattern.compile("");
+        String output = null;
+        String baseline = null;
+        boolean list = false;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-l":
+                    list = true;
+                    break;
+                case "-wi":
+                    bench.warmups = Integer.parseInt(args[++i]);
+                    break;
+                case "-i":
+                    bench.iterations = Math.max(1, Integer.parseInt(args[++i]));
+                    break;
+                case "-t":
+                    bench.iterationNanos = (long) (Double.parseDouble(args[++i]) * 1e9);
+                    break;
+                case "-o":
+                    output = args[++i];
+                    break;
+                case "-b":
+                    baseline = args[++i];
+                    break;
+                default:
+                    filter = Pattern.compile(args[i]);
+                    break;
+            }
+        }
+
+        List<Case> selected = new ArrayList<>();
+        for (Case benchmark : bench.cases) {
+            if (filter.matcher(benchmark.id()).find()) {
+                selected.add(benchmark);
+            }
+        }
+        if (list) {
+            for (Case benchmark : selected) {
+                System.out.println(benchmark.id());
+            }
+            return;
+        }
+
+        Map<String, Double> before = baseline == null ? new HashMap<>() : readScores(baseline);
+        List<String> rows = new ArrayList<>();
+        rows.add("benchmark,params,threads,score_ns,error_ns");
+        System.out.printf("%-60s %8s %14s %12s %14s %9s%n", "Benchmark", "Threads", "Score", "Error", "ops/s", "Change");
+        for (Case benchmark : selected) {
+            double[] scores = bench.run(benchmark);
+            double mean = mean(scores);
+            double error = deviation(scores, mean);
+            Double old = before.get(benchmark.id() + "@" + benchmark.threads);
+            System.out.printf(Locale.ROOT, "%-60s %8d %14s %12s %14.1f %9s%n",
+                    benchmark.id(), benchmark.threads, format(mean), "+- " + format(error),
+                    benchmark.threads * 1e9 / mean,
+                    old == null ? "" : String.format(Locale.ROOT, "%+.1f%%", (mean - old) * 100 / old));
+            rows.add(String.format(Locale.ROOT, "%s,%s,%d,%.1f,%.1f",
+                    benchmark.name, benchmark.params, benchmark.threads, mean, error));
+        }
+        if (output != null) {
+            Files.write(Paths.get(output), rows);
+        }
+    }
+
+    /**
+     * Set up, warm up and measure one benchmark
+     * @return the average nanoseconds per operation of every measured iteration
+     */
+    private double[] run(Case benchmark) throws Exception {
+        benchmark.setUp.run();
+        try {
+            for (int i = 0; i < warmups; i++) {
+                iteration(benchmark);
+            }
+            double[] scores = new double[iterations];
+            for (int i = 0; i < iterations; i++) {
+                scores[i] = iteration(benchmark);
+            }
+            return scores;
+        } finally {
+            benchmark.tearDown.run();
+        }
+    }
+
+    /**
+     * @return average nanoseconds per operation over one iteration
+     */
+    private double iteration(Case benchmark) throws Exception {
+        if (benchmark.threads > 1) {
+            return concurrent(benchmark);
+        }
+        long deadline = System.nanoTime() + iterationNanos;
+        long operations = 0;
+        long spent = 0;
+        if (benchmark.beforeEach != null) {
+            // every operation is timed on its own, so its preparation is left out
+            do {
+                benchmark.beforeEach.run();
+                long start = System.nanoTime();
+                sink = benchmark.operation.run();
+                spent += System.nanoTime() - start;
+                operations++;
+            } while (System.nanoTime() < deadline);
+            return (double) spent / operations;
+        }
+        // cheap operations are timed in batches that grow until a batch takes about a millisecond
+        int batch = 1;
+        do {
+            long start = System.nanoTime();
+            for (int i = 0; i < batch; i++) {
+                sink = benchmark.operation.run();
+            }
+            long elapsed = System.nanoTime() - start;
+            spent += elapsed;
+            operations += batch;
+            if (elapsed < 1_000_000 && batch < (1 << 20)) {
+                batch <<= 1;
+            }
+        } while (System.nanoTime() < deadline);
+        return (double) spent / operations;
+    }
+
+    /**
+     * Run the operation on all threads of the benchmark for one iteration
+     * @return the wall time per operation of one thread
+     */
+    private double concurrent(Case benchmark) throws Exception {
+        AtomicBoolean running = new AtomicBoolean(true);
+        AtomicLong operations = new AtomicLong();
+        List<Exception> failures = new ArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < benchmark.threads; t++) {
+            Thread thread = new Thread(() -> {
+                long count = 0;
+                try {
+                    while (running.get()) {
+                        sink = benchmark.operation.run();
+                        count++;
+                    }
+                } catch (Exception e) {
+                    synchronized (failures) {
+                        failures.add(e);
+                    }
+                }
+                operations.addAndGet(count);
+            }, "bench-" + t);
+            threads.add(thread);
+        }
+        long start = System.nanoTime();
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        Thread.sleep(iterationNanos / 1_000_000);
+        running.set(false);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long elapsed = System.nanoTime() - start;
+        if (!failures.isEmpty()) {
+            throw failures.get(0);
+        }
+        return (double) elapsed * benchmark.threads / Math.max(1, operations.get());
+    }
+
+    private static Map<String, Double> readScores(String file) throws IOException {
+        Map<String, Double> scores = new HashMap<>();
+        List<String> lines = Files.readAllLines(Paths.get(file));
+        for (String line : lines.subList(1, lines.size())) {
+            String[] fields = line.split(",");
+            String id = fields[1].isEmpty() ? fields[0] : fields[0] + " " + fields[1];
+            scores.put(id + "@" + fields[2], Double.parseDouble(fields[3]));
+        }
+        return scores;
+    }
+
+    private static double mean(double[] values) {
+        double sum = 0;
+        for (double value : values) {
+            sum += value;
+        }
+        return sum / values.length;
+    }
+
+    private static double deviation(double[] values, double mean) {
+        double sum = 0;
+        for (double value : values) {
+            sum += (value - mean) * (value - mean);
+        }
+        return values.length < 2 ? 0 : Math.sqrt(sum / (values.length - 1));
+    }
+
+    /**
+     * @return nanoseconds in the most readable unit
+     */
+    private static String format(double nanos) {
+        if (nanos >= 1e6) {
+            return String.format(Locale.ROOT, "%.3f ms", nanos / 1e6);
+        }
+        if (nanos >= 1e3) {
+            return String.format(Locale.ROOT, "%.3f us", nanos / 1e3);
+        }
+        return String.format(Locale.ROOT, "%.1f ns", nanos);
+    }
+}
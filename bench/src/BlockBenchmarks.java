@@ -0,0 +1,65 @@
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+
+/**
+ * name: Enliang Wu
+ * email: enliangw@andrew.cmu.edu
+ *
+ * Benchmarks of a single block: hashing, the Merkle root of a batch, and proof of work at several difficulties
+ * through Block.proofOfWork and through miners with one and with all workers.
+ * The block is the same for every call and mining starts from nonce 0,
+ * so every call searches exactly the same nonces.
+ */
+public class BlockBenchmarks {
+    private static final String PARENT = "00A3F1C2D4E5B6978812AB34CD56EF7890123456789ABCDEF0123456789ABCDE";
+    private static final int[] DIFFICULTIES = {1, 2, 3, 4};
+
+    private final int difficulty;
+    private Block block;
+
+    private BlockBenchmarks(int difficulty) {
+        this.difficulty = difficulty;
+    }
+
+    static void register(Bench bench) {
+        BlockBenchmarks hashing = new BlockBenchmarks(2);
+        bench.add("BlockBenchmarks.calculateHash", "", hashing::calculateHash).setUp(hashing::setUp);
+
+        for (int count : new int[]{16, 256}) {
+            byte[][] transactions = new byte[count][];
+            for (int i = 0; i < count; i++) {
+                transactions[i] = ("Alice pays Bob " + i + " dscoin").getBytes(StandardCharsets.UTF_8);
+            }
+            bench.add("BlockBenchmarks.merkleRoot", "transactions=" + count, () -> MerkleTree.root(transactions));
+        }
+
+        for (int difficulty : DIFFICULTIES) {
+            BlockBenchmarks mining = new BlockBenchmarks(difficulty);
+            bench.add("BlockBenchmarks.proofOfWork", "difficulty=" + difficulty, mining::proofOfWork)
+                    .setUp(mining::setUp);
+        }
+
+        int cores = Runtime.getRuntime().availableProcessors();
+        for (int threads : cores > 1 ? new int[]{1, cores} : new int[]{1}) {
+            Miner miner = new Miner(threads);
+            BlockBenchmarks mining = new BlockBenchmarks(DIFFICULTIES[DIFFICULTIES.length - 1]);
+            bench.add("BlockBenchmarks.mine", "difficulty=" + mining.difficulty + " workers=" + threads,
+                    () -> miner.mine(mining.block)).setUp(mining::setUp);
+        }
+    }
+
+    private void setUp() {
+        block = new Block(1, new Timestamp(1700000000000L), "Alice pays Bob 10 dscoin", difficulty);
+        block.setPreviousHash(PARENT);
+    }
+
+    private Object calculateHash() {
+        return block.calculateHash();
+    }
+
+    private Object proofOfWork() {
+        // otherwise the search would start at the nonce found by the previous call
+        block.setNonce(0);
+        return block.proofOfWork();
+    }
+}
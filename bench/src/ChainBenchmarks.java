@@ -0,0 +1,97 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Timestamp;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/**
+ * name: Enliang Wu
+ * email: enliangw@andrew.cmu.edu
+ *
+ * Benchmarks of the chain at several lengths, held in memory or backed by a BlockStore:
+ * appending a block, full and incremental validation,
+ * and repairing a corruption near the tip and in the middle of the chain.
+ * Blocks are mined with difficulty 1, so building a long chain for the set up stays quick.
+ */
+public class ChainBenchmarks {
+    private static final int[] LENGTHS = {1000, 10000, 100000};
+
+    private final int length;
+    private final boolean stored;
+    private Path dir;
+    private BlockStore store;
+    private BlockChain chain;
+    private int corruptions;
+
+    private ChainBenchmarks(int length, boolean stored) {
+        this.length = length;
+        this.stored = stored;
+    }
+
+    static void register(Bench bench) {
+        for (int length : LENGTHS) {
+            for (boolean stored : new boolean[]{false, true}) {
+                String params = "length=" + length + " backing=" + (stored ? "store" : "memory");
+
+                ChainBenchmarks append = new ChainBenchmarks(length, stored);
+                bench.add("ChainBenchmarks.addBlock", params, append::addBlock)
+                        .setUp(append::setUp).tearDown(append::tearDown);
+
+                ChainBenchmarks full = new ChainBenchmarks(length, stored);
+                bench.add("ChainBenchmarks.isChainValidFull", params, () -> full.chain.isChainValid(true))
+                        .setUp(full::setUp).tearDown(full::tearDown);
+
+                ChainBenchmarks incremental = new ChainBenchmarks(length, stored);
+                bench.add("ChainBenchmarks.isChainValid", params, () -> incremental.chain.isChainValid())
+                        .setUp(incremental::setUp).tearDown(incremental::tearDown);
+
+                ChainBenchmarks tip = new ChainBenchmarks(length, stored);
+                bench.add("ChainBenchmarks.repairChainTip", params, tip::repairChain)
+                        .setUp(tip::setUp).beforeEach(() -> tip.corrupt(length - 10)).tearDown(tip::tearDown);
+
+                ChainBenchmarks middle = new ChainBenchmarks(length, stored);
+                bench.add("ChainBenchmarks.repairChainMiddle", params, middle::repairChain)
+                        .setUp(middle::setUp).beforeEach(() -> middle.corrupt(length / 2)).tearDown(middle::tearDown);
+            }
+        }
+    }
+
+    private void setUp() throws IOException {
+        if (stored) {
+            dir = Files.createTempDirectory("chain-bench");
+            store = BlockStore.open(dir);
+            chain = new BlockChain(store);
+        } else {
+            chain = new BlockChain();
+        }
+        for (int i = 0; i < length; i++) {
+            chain.addBlock(new Block(0, new Timestamp(1700000000000L + i), "Alice pays Bob " + i + " dscoin", 1));
+        }
+        // the first validation checks every block, later ones only what changed
+        chain.isChainValid();
+    }
+
+    private void tearDown() throws IOException {
+        if (store != null) {
+            store.close();
+            try (Stream<Path> files = Files.walk(dir)) {
+                files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+            }
+        }
+    }
+
+    private Object addBlock() {
+        chain.addBlock(new Block(0, chain.getTime(), "Alice pays Bob 10 dscoin", 1));
+        return chain.getChainHash();
+    }
+
+    private void corrupt(int index) {
+        chain.setBlockData(index, "Mallory pays Mallory " + ++corruptions + " dscoin");
+    }
+
+    private Object repairChain() {
+        chain.repairChain();
+        return chain.getChainHash();
+    }
+}
@@ -0,0 +1,78 @@
+import com.alibaba.fastjson.JSONObject;
+import java.sql.Timestamp;
+
+/**
+ * name: Enliang Wu
+ * email: enliangw@andrew.cmu.edu
+ *
+ * Benchmarks of message round trips (encode then decode) with the JSON and the binary codec:
+ * a request, a status response, and a response carrying a page of 256 blocks.
+ * The fastjson round trip of RequestMessage and ResponseMessage through Strings,
+ * which is how messages were written before the codecs, is measured as well.
+ */
+public class CodecBenchmarks {
+    private static final int PAGE = 256;
+
+    private final MessageCodec codec;
+    private RequestMessage request;
+    private ResponseMessage status;
+    private ResponseMessage page;
+
+    private CodecBenchmarks(MessageCodec codec) {
+        this.codec = codec;
+    }
+
+    static void register(Bench bench) {
+        for (String name : new String[]{"json", "binary"}) {
+            CodecBenchmarks messages = new CodecBenchmarks(MessageCodec.forName(name));
+            String params = "codec=" + name;
+            bench.add("CodecBenchmarks.request", params, messages::request).setUp(messages::setUp);
+            bench.add("CodecBenchmarks.status", params, messages::status).setUp(messages::setUp);
+            bench.add("CodecBenchmarks.blocks", params, messages::blocks).setUp(messages::setUp);
+        }
+
+        CodecBenchmarks strings = new CodecBenchmarks(null);
+        bench.add("CodecBenchmarks.fastjsonRequest", "", strings::fastjsonRequest).setUp(strings::setUp);
+        bench.add("CodecBenchmarks.fastjsonStatus", "", strings::fastjsonStatus).setUp(strings::setUp);
+    }
+
+    private void setUp() {
+        request = new RequestMessage(1, 2, "Alice pays Bob 10 dscoin", 0);
+        status = new ResponseMessage(true, "Current size of chain: 1000\n"
+                + "Difficulty of most recent block: 2\n"
+                + "Total difficulty for all blocks: 2000\n"
+                + "Chain hash: 00C118EBA287D092B1DD18E6BD36EFFC73C4E66DF34667256C22E8C1C13441C3", 0, null);
+
+        BlockChain chain = new BlockChain();
+        for (int i = 0; i < PAGE; i++) {
+            chain.addBlock(new Block(0, new Timestamp(1700000000000L + i), "Alice pays Bob " + i + " dscoin", 1));
+        }
+        BlockChain.Snapshot snapshot = chain.snapshot(0, PAGE);
+        page = new ResponseMessage(true, null, 0, null);
+        page.setBlocks(snapshot.getBlocks());
+        page.setChainHash(snapshot.getChainHash());
+    }
+
+    private Object request() {
+        byte[] bytes = codec.encodeRequest(request);
+        return codec.decodeRequest(bytes, 0, bytes.length);
+    }
+
+    private Object status() {
+        byte[] bytes = codec.encodeResponse(status);
+        return codec.decodeResponse(bytes, 0, bytes.length);
+    }
+
+    private Object blocks() {
+        byte[] bytes = codec.encodeResponse(page);
+        return codec.decodeResponse(bytes, 0, bytes.length);
+    }
+
+    private Object fastjsonRequest() {
+        return JSONObject.parseObject(JSONObject.toJSONString(request), RequestMessage.class);
+    }
+
+    private Object fastjsonStatus() {
+        return JSONObject.parseObject(JSONObject.toJSONString(status), ResponseMessage.class);
+    }
+}
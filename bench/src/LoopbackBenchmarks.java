@@ -0,0 +1,143 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * name: Enliang Wu
+ * email: enliangw@andrew.cmu.edu
+ *
+ * Client/server throughput over loopback.
+ * The server is started as a separate process on a fresh data directory,
+ * once with the thread per connection server and once with the NIO server,
+ * and a few blocks are added before measuring.
+ * Every client thread keeps its own connection and sends one request at a time:
+ * a status request, and a range of 100 blocks.
+ * The server listens on its fixed port, so no other server may be running.
+ */
+public class LoopbackBenchmarks {
+    private static final int PORT = 6789;
+    private static final int BLOCKS = 100;
+
+    private final boolean nio;
+    private final MessageCodec codec;
+    private final List<Connection> connections = new ArrayList<>();
+    private final ThreadLocal<Connection> connection = new ThreadLocal<>();
+    private Path dir;
+    private Process server;
+    private byte[] statusRequest;
+    private byte[] rangeRequest;
+
+    private LoopbackBenchmarks(boolean nio, MessageCodec codec) {
+        this.nio = nio;
+        this.codec = codec;
+    }
+
+    static void register(Bench bench) {
+        for (boolean nio : new boolean[]{false, true}) {
+            for (int threads : new int[]{1, 8}) {
+                String params = "server=" + (nio ? "nio" : "blocking");
+                LoopbackBenchmarks status = new LoopbackBenchmarks(nio, MessageCodec.JSON);
+                bench.add("LoopbackBenchmarks.status", params, status::status)
+                        .setUp(status::setUp).tearDown(status::tearDown).threads(threads);
+                LoopbackBenchmarks range = new LoopbackBenchmarks(nio, MessageCodec.BINARY);
+                bench.add("LoopbackBenchmarks.range", params + " codec=binary", range::range)
+                        .setUp(range::setUp).tearDown(range::tearDown).threads(threads);
+            }
+        }
+    }
+
+    private void setUp() throws Exception {
+        dir = Files.createTempDirectory("loopback-bench");
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        server = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                "-Dblockchain.dir=" + dir, "-Dblockchain.server.nio=" + nio, "Server")
+                .redirectErrorStream(true)
+                .redirectOutput(dir.resolve("server.out").toFile())
+                .start();
+
+        // wait for the server to accept connections
+        for (int attempt = 0; ; attempt++) {
+            try {
+                new Socket("localhost", PORT).close();
+                break;
+            } catch (IOException e) {
+                if (attempt == 100 || !server.isAlive()) {
+                    throw new IOException("server did not start", e);
+                }
+                Thread.sleep(100);
+            }
+        }
+
+        for (int i = 0; i < BLOCKS; i++) {
+            roundTrip(codec.encodeRequest(new RequestMessage(1, 1, "Alice pays Bob " + i + " dscoin", 0)));
+        }
+        statusRequest = codec.encodeRequest(new RequestMessage(0));
+        RequestMessage range = new RequestMessage(7, 0, null, 0);
+        range.setCount(BLOCKS);
+        rangeRequest = codec.encodeRequest(range);
+    }
+
+    private void tearDown() throws Exception {
+        synchronized (connections) {
+            for (Connection open : connections) {
+                open.socket.close();
+            }
+            connections.clear();
+        }
+        connection.remove();
+        server.destroy();
+        server.waitFor();
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+        }
+    }
+
+    private Object status() throws IOException {
+        return roundTrip(statusRequest);
+    }
+
+    private Object range() throws IOException {
+        return roundTrip(rangeRequest);
+    }
+
+    /**
+     * Send one request on this thread's connection and read its response
+     * @return the response payload
+     */
+    private byte[] roundTrip(byte[] request) throws IOException {
+        Connection current = connection.get();
+        if (current == null) {
+            current = new Connection(new Socket("localhost", PORT));
+            connection.set(current);
+            synchronized (connections) {
+                connections.add(current);
+            }
+        }
+        FrameCodec.writeFrame(current.out, request);
+        current.out.flush();
+        return FrameCodec.readFrame(current.in, FrameCodec.MAX_RESPONSE);
+    }
+
+    private static final class Connection {
+        private final Socket socket;
+        private final DataInputStream in;
+        private final OutputStream out;
+
+        private Connection(Socket socket) throws IOException {
+            this.socket = socket;
+            socket.setTcpNoDelay(true);
+            this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            this.out = new BufferedOutputStream(socket.getOutputStream());
+        }
+    }
+}
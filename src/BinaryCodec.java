@@ -0,0 +1,159 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * name: Enliang Wu
+ * email: enliangw@andrew.cmu.edu
+ *
+ * This class is the compact codec, messages are written field by field with DataOutput.
+ * Every payload starts with MAGIC, which can never start a JSON document.
+ * Blocks in a response are sent as binary block records (see BlockCodec)
+ * instead of one large JSON string, so chain dumps are much smaller and cheaper to produce.
+ * Counts and lengths read from a message are checked against the bytes left in it,
+ * so a malformed message is rejected with an IllegalArgumentException.
+ */
+public class BinaryCodec implements MessageCodec {
+    static final byte MAGIC = (byte) 0xB1;
+
+    @Override
+    public byte[] encodeRequest(RequestMessage message) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(MAGIC);
+            out.writeInt(message.getType());
+            out.writeInt(message.getDifficulty());
+            out.writeInt(message.getIndex());
+            out.writeInt(message.getCount());
+            BlockCodec.writeString(out, message.getData());
+            out.writeBoolean(message.isFullScan());
+            writeStrings(out, message.getTransactions());
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public RequestMessage decodeRequest(byte[] bytes, int offset, int length) {
+        try {
+            DataInputStream in = open(bytes, offset, length);
+            RequestMessage message = new RequestMessage();
+            message.setType(in.readInt());
+            message.setDifficulty(in.readInt());
+            message.setIndex(in.readInt());
+            message.setCount(in.readInt());
+            message.setData(BlockCodec.readString(in));
+            // fields added later are optional, so older clients can still be decoded
+            if (in.available() > 0) {
+                message.setFullScan(in.readBoolean());
+            }
+            if (in.available() > 0) {
+                message.setTransactions(readStrings(in));
+            }
+            return message;
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Invalid binary request", e);
+        }
+    }
+
+    @Override
+    public byte[] encodeResponse(ResponseMessage message) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(MAGIC);
+            out.writeBoolean(message.isSuccess());
+            out.writeLong(message.getExecutionTime());
+            BlockCodec.writeString(out, message.getData());
+            BlockCodec.writeString(out, message.getErrMsg());
+            List<Block> blocks = message.getBlocks();
+            out.writeInt(blocks == null ? -1 : blocks.size());
+            if (blocks != null) {
+                for (Block block : blocks) {
+                    BlockCodec.writeBlock(out, block);
+                }
+            }
+            BlockCodec.writeString(out, message.getChainHash());
+            out.writeBoolean(message.isMore());
+            writeStrings(out, message.getProof());
+            BlockCodec.writeString(out, message.getMerkleRoot());
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public ResponseMessage decodeResponse(byte[] bytes, int offset, int length) {
+        try {
+            DataInputStream in = open(bytes, offset, length);
+            ResponseMessage message = new ResponseMessage();
+            message.setSuccess(in.readBoolean());
+            message.setExecutionTime(in.readLong());
+            message.setData(BlockCodec.readString(in));
+            message.setErrMsg(BlockCodec.readString(in));
+            int count = in.readInt();
+            if (count > in.available()) {
+                throw new IOException("Invalid block count " + count);
+            }
+            if (count >= 0) {
+                List<Block> blocks = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    blocks.add(BlockCodec.readBlock(in));
+                }
+                message.setBlocks(blocks);
+            }
+            message.setChainHash(BlockCodec.readString(in));
+            message.setMore(in.readBoolean());
+            if (in.available() > 0) {
+                message.setProof(readStrings(in));
+                message.setMerkleRoot(BlockCodec.readString(in));
+            }
+            return message;
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Invalid binary response", e);
+        }
+    }
+
+    /**
+     * Write a nullable list of strings as its size (-1 for null) and strings
+     */
+    private static void writeStrings(DataOutputStream out, List<String> strings) throws IOException {
+        out.writeInt(strings == null ? -1 : strings.size());
+        if (strings != null) {
+            for (String s : strings) {
+                BlockCodec.writeString(out, s);
+            }
+        }
+    }
+
+    private static List<String> readStrings(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        if (count < 0) {
+            return null;
+        }
+        // every string takes at least its 4 byte length
+        if (count > in.available() / 4) {
+            throw new IOException("Invalid string count " + count);
+        }
+        List<String> strings = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            strings.add(BlockCodec.readString(in));
+        }
+        return strings;
+    }
+
+    private static DataInputStream open(byte[] bytes, int offset, int length) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes, offset, length));
+        if (in.readByte() != MAGIC) {
+            throw new IOException("Not a binary message");
+        }
+        return in;
+    }
+}
@@ -4,34 +4,48 @@
  */
 
 import java.math.BigInteger;
-import java.security.MessageDigest;
+import java.nio.charset.StandardCharsets;
 import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
 
 
 /**
- * This class represents a simple Block
+ * This class represents a simple Block.
+ * A block holds either a single transaction (data), which is how blocks have always been,
+ * or a batch of transactions under a Merkle root (see MerkleTree).
+ * Single transaction blocks keep their original hash input; the hash input of a batch block
+ * holds the Merkle root in place of the data, so the proof of work is paid once for all of its transactions.
  */
 public class Block {
 
     /** index - the position of the block on the chain. The first block (the so called Genesis block) has an index of 0 */
     private int index;
 
-    /** timestamp - a Java Timestamp object, it holds the time of the block's creation */
-    private Timestamp created;
+    /** created - the time of the block's creation, in milliseconds since the epoch */
+    private long created;
 
-    /** data - a String holding the block's single transaction details */
-    private String data;
+    /** data - the block's single transaction details, as UTF-8 bytes (null when there is no transaction or a batch) */
+    private byte[] data;
 
-    /** previousHash - the SHA256 hash of a block's parent. This is also called a hash pointer */
-    private String previousHash = "";
+    /** transactions - the transactions of a batch block as UTF-8 bytes, null for a single transaction block */
+    private byte[][] transactions;
 
-    /** nonce - a BigInteger value determined by a proof of work routine.
+    /** merkleRoot - memoized raw Merkle root of the transactions, null when it has to be computed again */
+    private byte[] merkleRoot;
+
+    /** previousHash - the raw SHA256 hash of a block's parent. This is also called a hash pointer.
+     * It is empty for the Genesis block.
+     * */
+    private byte[] previousHash = EMPTY;
+
+    /** nonce - a value determined by a proof of work routine.
      * This has to be found by the proof of work logic.
      * It has to be found so that this block has a hash of the proper difficulty.
      * The difficulty is specified by a small integer representing
      * the minimum number of leading hex zeroes the hash must have
      * */
-    private BigInteger nonce;
+    private long nonce;
 
     /** difficulty - it is an int that specifies the minimum number of left most hex digits needed by a proper hash.
      * The hash is represented in hexadecimal.
@@ -40,6 +54,21 @@ public class Block {
      * */
     private int difficulty;
 
+    /** hash - memoized raw result of calculateHash(), null when it has to be computed again.
+     * Every setter that changes the hash input clears it.
+     * */
+    private byte[] hash;
+
+    /** chain - the chain this block has been published on, told about every change to the hash input */
+    BlockChain chain;
+
+    private static final byte[] EMPTY = new byte[0];
+    private static final byte[] NULL = "null".getBytes(StandardCharsets.UTF_8);
+
+    /** BATCH - starts the Merkle root in the hash input of a batch block.
+     * It is never part of UTF-8 text, so a batch block can not have the hash input of a single transaction block. */
+    private static final byte BATCH = (byte) 0xFF;
+
     /** This the Block constructor
      * @param index - This is the position within the chain. Genesis is at 0.
      * @param created - This is the time this block was added.
@@ -47,11 +76,67 @@ public class Block {
      * @param difficulty - This is the number of leftmost nibbles that need to be 0.
      * */
     public Block(int index, Timestamp created, String data, int difficulty) {
+        this.index = index;
+        this.created = created.getTime();
+        this.data = data == null ? null : data.getBytes(StandardCharsets.UTF_8);
+        this.difficulty = difficulty;
+    }
+
+    /** Constructor of a batch block
+     * @param index - This is the position within the chain. Genesis is at 0.
+     * @param created - This is the time this block was added.
+     * @param transactions - These are the transactions to be included on the blockchain, at least one.
+     * @param difficulty - This is the number of leftmost nibbles that need to be 0.
+     * */
+    public Block(int index, Timestamp created, List<String> transactions, int difficulty) {
+        if (transactions.isEmpty()) {
+            throw new IllegalArgumentException("A batch block needs at least one transaction");
+        }
+        this.index = index;
+        this.created = created.getTime();
+        this.transactions = new byte[transactions.size()][];
+        for (int i = 0; i < this.transactions.length; i++) {
+            this.transactions[i] = transactions.get(i).getBytes(StandardCharsets.UTF_8);
+        }
+        this.difficulty = difficulty;
+    }
+
+    /**
+     * Constructor for a block that has already been mined, used when blocks are decoded
+     * @param index - This is the position within the chain.
+     * @param created - This is the time this block was added, in milliseconds since the epoch.
+     * @param data - This is the transaction included on the blockchain, as UTF-8 bytes.
+     * @param previousHash - This is the raw hash of the parent block, empty for the Genesis block.
+     * @param nonce - This is the nonce found by the proof of work.
+     * @param difficulty - This is the number of leftmost nibbles that need to be 0.
+     */
+    Block(int index, long created, byte[] data, byte[] previousHash, long nonce, int difficulty) {
+        this(index, created, data, null, previousHash, nonce, difficulty);
+    }
+
+    /**
+     * Constructor for a mined block that may be a batch, used when blocks are decoded
+     * @param transactions - This is the batch of transactions as UTF-8 bytes, null for a single transaction block.
+     */
+    Block(int index, long created, byte[] data, byte[][] transactions, byte[] previousHash, long nonce, int difficulty) {
         this.index = index;
         this.created = created;
         this.data = data;
+        this.transactions = transactions;
+        this.previousHash = previousHash;
+        this.nonce = nonce;
         this.difficulty = difficulty;
-        nonce = new BigInteger("0");
+    }
+
+    /**
+     * Copy constructor, gives readers a snapshot that later changes to the chain do not affect.
+     * The byte arrays are never modified in place, so the copy shares them.
+     * @param other - block to copy
+     */
+    Block(Block other) {
+        this(other.index, other.created, other.data, other.transactions, other.previousHash, other.nonce, other.difficulty);
+        this.merkleRoot = other.merkleRoot;
+        this.hash = other.hash;
     }
 
     /**
@@ -67,23 +152,44 @@ public class Block {
      * @return created - timestamp of this block
      * */
     public Timestamp getCreated() {
-        return created;
+        return new Timestamp(created);
     }
 
     /**
      * Simple getter method
-     * @return this block's transaction
+     * @return this block's transaction, null for a batch block
      */
     public String getData() {
-        return data;
+        return data == null ? null : new String(data, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return the transactions of a batch block, null for a single transaction block
+     */
+    public List<String> getTransactions() {
+        if (transactions == null) {
+            return null;
+        }
+        List<String> list = new ArrayList<>(transactions.length);
+        for (byte[] transaction : transactions) {
+            list.add(new String(transaction, StandardCharsets.UTF_8));
+        }
+        return list;
+    }
+
+    /**
+     * @return the Merkle root of a batch block in hexadecimal, null for a single transaction block
+     */
+    public String getMerkleRoot() {
+        return transactions == null ? null : BlockHasher.toHex(merkleRootBytes());
     }
 
     /**
      * Simple getter method
-     * @return previous hash
+     * @return previous hash as uppercase hexadecimal, empty for the Genesis block
      */
     public String getPreviousHash() {
-        return previousHash;
+        return BlockHasher.toHex(previousHash);
     }
 
     /**
@@ -93,7 +199,7 @@ public class Block {
      * @return a BigInteger representing the nonce for this block
      * */
     public BigInteger getNonce() {
-        return nonce;
+        return BigInteger.valueOf(nonce);
     }
 
     /**
@@ -104,6 +210,51 @@ public class Block {
         return difficulty;
     }
 
+    /**
+     * @return creation time in milliseconds since the epoch
+     */
+    long createdMillis() {
+        return created;
+    }
+
+    /**
+     * @return the transaction as UTF-8 bytes, null when there is none. Must not be modified.
+     */
+    byte[] dataBytes() {
+        return data;
+    }
+
+    /**
+     * @return the transactions of a batch block as UTF-8 bytes, null for a single transaction block. Must not be modified.
+     */
+    byte[][] transactionBytes() {
+        return transactions;
+    }
+
+    /**
+     * @return the memoized raw Merkle root of a batch block. Must not be modified.
+     */
+    byte[] merkleRootBytes() {
+        if (merkleRoot == null) {
+            merkleRoot = MerkleTree.root(transactions);
+        }
+        return merkleRoot;
+    }
+
+    /**
+     * @return the raw previous hash, empty for the Genesis block. Must not be modified.
+     */
+    byte[] previousHashBytes() {
+        return previousHash;
+    }
+
+    /**
+     * @return the nonce as a primitive
+     */
+    long nonce() {
+        return nonce;
+    }
+
     /**
      * Simple getter method
      * @param index
@@ -111,6 +262,7 @@ public class Block {
      */
     public void setIndex(int index) {
         this.index = index;
+        changed();
     }
 
     /**
@@ -118,24 +270,49 @@ public class Block {
      * @param created
      */
     public void setCreated(Timestamp created) {
-        this.created = created;
+        this.created = created.getTime();
+        changed();
     }
 
     /**
-     * Simple setter method
+     * Simple setter method, a batch block becomes a single transaction block
      * @param data - represents the transaction held by this block
      */
     public void setData(String data) {
-        this.data = data;
+        this.data = data == null ? null : data.getBytes(StandardCharsets.UTF_8);
+        this.transactions = null;
+        this.merkleRoot = null;
+        changed();
     }
 
     /**
      * Simple setter method
      * previousHash - a hashpointer to this block's parent
-     * @param previousHash
+     * @param previousHash - the parent's hash in hexadecimal, empty for the Genesis block
+     * @throws IllegalArgumentException if previousHash is not hexadecimal
      */
     public void setPreviousHash(String previousHash) {
-        this.previousHash = previousHash;
+        this.previousHash = previousHash == null || previousHash.isEmpty() ? EMPTY : BlockHasher.fromHex(previousHash);
+        changed();
+    }
+
+    /**
+     * Set the nonce the next proof of work starts from
+     * @param nonce - not negative
+     */
+    void setNonce(long nonce) {
+        this.nonce = nonce;
+        changed();
+    }
+
+    /**
+     * Point this block at its parent by sharing the parent's raw hash,
+     * so the chain holds each hash only once
+     * @param parent - the block in front of this one
+     */
+    void linkTo(Block parent) {
+        this.previousHash = parent.hashBytes();
+        changed();
     }
 
     /**
@@ -144,6 +321,17 @@ public class Block {
      */
     public void setDifficulty(int difficulty) {
         this.difficulty = difficulty;
+        changed();
+    }
+
+    /**
+     * Forget the memoized hash and let the chain know this block has to be verified again
+     */
+    private void changed() {
+        hash = null;
+        if (chain != null) {
+            chain.markDirty(index);
+        }
     }
 
     /**
@@ -153,47 +341,92 @@ public class Block {
      * https://www.baeldung.com/sha-256-hashing-java
      */
     public String calculateHash() {
-        String input = index + created.getTime() + data + previousHash + nonce + difficulty;
-        try {
-            MessageDigest digest = MessageDigest.getInstance("SHA-256");
-            byte[] hash = digest.digest(input.getBytes("UTF-8"));
-            StringBuffer hexString = new StringBuffer();
-            for (int i = 0; i < hash.length; i++) {
-                // convert hex num to string
-                String hex = Integer.toHexString(0xff & hash[i]);
-                if (hex.length() == 1) {
-                    hexString.append('0');
-                }
-                hexString.append(hex);
-            }
-            return hexString.toString().toUpperCase();
-        } catch (Exception e) {
-            throw new RuntimeException(e);
+        byte[] hash = new byte[BlockHasher.HASH_LENGTH];
+        BlockHasher.get().hash(headerPrefix(), nonce, headerSuffix(), hash);
+        return BlockHasher.toHex(hash);
+    }
+
+    /**
+     * This method returns the hash of this block, computing it only when
+     * the block has changed since the last call
+     * @return a String holding Hexadecimal characters
+     */
+    public String getHash() {
+        return BlockHasher.toHex(hashBytes());
+    }
+
+    /**
+     * @return the memoized raw hash of this block. Must not be modified.
+     */
+    byte[] hashBytes() {
+        if (hash == null) {
+            byte[] computed = new byte[BlockHasher.HASH_LENGTH];
+            BlockHasher.get().hash(headerPrefix(), nonce, headerSuffix(), computed);
+            hash = computed;
         }
+        return hash;
+    }
+
+    /**
+     * The part of the hash input in front of the nonce.
+     * Note that index and timestamp are added as numbers before the concatenation,
+     * and that the previous hash is hashed as hexadecimal text,
+     * which is how the hash input has always been formed.
+     * A batch block has BATCH and its raw Merkle root in place of the data.
+     * @return UTF-8 bytes of the index + timestamp, data and previousHash
+     */
+    byte[] headerPrefix() {
+        byte[] time = Long.toString(index + created).getBytes(StandardCharsets.UTF_8);
+        byte[] text = transactions != null ? batchHeader() : data == null ? NULL : data;
+        byte[] parent = BlockHasher.toHex(previousHash).getBytes(StandardCharsets.US_ASCII);
+        byte[] prefix = new byte[time.length + text.length + parent.length];
+        System.arraycopy(time, 0, prefix, 0, time.length);
+        System.arraycopy(text, 0, prefix, time.length, text.length);
+        System.arraycopy(parent, 0, prefix, time.length + text.length, parent.length);
+        return prefix;
+    }
+
+    private byte[] batchHeader() {
+        byte[] root = merkleRootBytes();
+        byte[] header = new byte[1 + root.length];
+        header[0] = BATCH;
+        System.arraycopy(root, 0, header, 1, root.length);
+        return header;
     }
 
     /**
-     * This method calls calculateHash() to compute a hash of
-     * the concatenation of the index, timestamp, data, previousHash, nonce, and difficulty.
-     * If the hash has the appropriate number of leading hex zeroes, it is done and returns that proper hash.
-     * If the hash does not have the appropriate number of leading hex zeroes,
-     * it increments the nonce by 1 and tries again.
-     * It continues this process, burning electricity and CPU cycles, until it gets lucky and finds a good hash
+     * The part of the hash input after the nonce
+     * @return UTF-8 bytes of the difficulty
+     */
+    byte[] headerSuffix() {
+        return Integer.toString(difficulty).getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * This method searches for a nonce that gives this block a hash of
+     * the concatenation of the index, timestamp, data, previousHash, nonce, and difficulty
+     * with the appropriate number of leading hex zeroes.
+     * Starting from the current nonce, candidate nonces are tried in parallel by the miner workers
+     * (see Miner), burning electricity and CPU cycles, until one of them gets lucky and finds a good hash.
+     * The winning nonce is written back into this block and the resulting hash is memoized.
      * @return a String with a hash that has the appropriate number of leading hex zeroes.
      * The difficulty value is already in the block. This is the minimum number of hex 0's a proper hash must have.
      * */
     public String proofOfWork() {
-        // difficulty means the required number of leading zeros in hash
-        String target = new String(new char[difficulty]).replace('\0', '0');
-
-        while (true) {
-            String hexHash = calculateHash();
-            // if hexHash doesn't have enough leading zeros, we need increase nonce by one and calculate hash again
-            if (hexHash.substring(0, difficulty).equals(target)) {
-                return hexHash.toUpperCase();
-            }
-            nonce = nonce.add(new BigInteger("1"));
-        }
+        return proofOfWork(null);
+    }
+
+    /**
+     * The proof of work of a tracked mining job, see proofOfWork()
+     * @param job - job told about the progress, null to search until a nonce is found
+     * @return a String with a hash that has the appropriate number of leading hex zeroes
+     * @throws java.util.concurrent.CancellationException if the job was cancelled or passed its deadline,
+     * the block is then left unchanged
+     */
+    String proofOfWork(MiningJob job) {
+        nonce = Miner.getDefault().mine(this, job);
+        changed();
+        return getHash();
     }
 
     /**
@@ -203,7 +436,21 @@ public class Block {
     @Override
     public String toString() {
         return "{\"index\" : " + index +
-                ",\"time stamp \" : \"" + created + "\", \"Tx \": \"" + data + "\",\"PrevHash\" : \"" + previousHash
+                ",\"time stamp \" : \"" + getCreated() + "\", " + transactionsToString() + ",\"PrevHash\" : \"" + getPreviousHash()
                 + "\",\"nonce\" : " + nonce + ",\"difficulty\": " + difficulty + "}";
     }
+
+    private String transactionsToString() {
+        if (transactions == null) {
+            return "\"Tx \": \"" + getData() + "\"";
+        }
+        StringBuilder sb = new StringBuilder("\"Txs\": [");
+        for (int i = 0; i < transactions.length; i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append('"').append(new String(transactions[i], StandardCharsets.UTF_8)).append('"');
+        }
+        return sb.append("], \"MerkleRoot\": \"").append(getMerkleRoot()).append('"').toString();
+    }
 }
@@ -1,7 +1,18 @@
-import java.security.MessageDigest;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.sql.Timestamp;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Scanner;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * name: Enliang Wu
@@ -15,16 +26,237 @@ import java.util.Scanner;
  * difficulty 4: Total execution time to add this block was 283 milliseconds
  * difficulty 5: Total execution time to add this block was 1588 milliseconds
  * as we can see, after difficulty is greater than 2, the processing time increases by several times for each additional difficulty of 1
+ *
+ * The chain is safe to share between threads.
+ * Readers hold the read lock, so they run in parallel and see a consistent chain.
+ * Writers (append, corrupt, repair) are serialized by the append lock.
+ * An append or a repair mines blocks while holding only the append lock and takes the write lock
+ * just to publish them, so readers are not blocked by proof of work.
+ * A chain created with a BlockStore writes every new or changed block to it.
+ * Such a chain only keeps its most recent blocks ("blockchain.cache.blocks", default 1024) as objects;
+ * older blocks are decoded from the memory-mapped store whenever they are read,
+ * so the heap does not grow with the chain.
+ * The dscoin transfers of the blocks are booked in a Ledger as blocks are added or corrupted,
+ * so the balance and history of an account are read without scanning the chain.
+ * Blocks are also found by their hash and by the IDs of their transactions through a BlockIndex.
+ * Both are kept in memory-mapped scratch files of the store, so they do not grow the heap either.
+ * Neither is stored: a reopened chain builds them in the background, decoding every old block once,
+ * and the lookups that need them wait for the build.
+ *
+ * Validation is incremental: the chain remembers how many blocks from genesis are known to be valid,
+ * and a change to any block on the chain lowers that mark to the block's index.
+ * A routine verification only checks the blocks from the mark onward.
+ * Long ranges of blocks (a full scan, or a freshly loaded chain) are checked in parallel on a fork-join pool.
  */
 public class BlockChain {
+    private static final int RECENT_BLOCKS = Math.max(1, Integer.getInteger("blockchain.cache.blocks", 1024));
+    /** VERIFY_CHUNK - validations of more blocks than this are split into ranges of at most this many blocks */
+    private static final int VERIFY_CHUNK = Math.max(1, Integer.getInteger("blockchain.verify.chunk", 4096));
+    /** VERIFIERS - checks the ranges, "blockchain.verify.threads" threads (default one per core) */
+    private static final ForkJoinPool VERIFIERS = new ForkJoinPool(
+            Integer.getInteger("blockchain.verify.threads", Runtime.getRuntime().availableProcessors()));
+    /** REPAIR_BATCH - number of repaired blocks swapped into the chain at a time */
+    private static final int REPAIR_BATCH = Math.max(1, Integer.getInteger("blockchain.repair.batch", 64));
+    private static final String PARENT_MISMATCH = "Block's hash doesn't equal to hash of parent";
+    /** INDEX_CHUNK - blocks of a reopened chain booked at a time by the background build, see index() */
+    private static final int INDEX_CHUNK = 4096;
+
+    /** blocks - all blocks of a chain that only lives in memory, null for a stored chain */
     private ArrayList<Block> blocks;
-    private String chainHash;
-    private int hashesPerSecond;
+    /** recent - ring of the most recent blocks of a stored chain, block i is at i % recent.length */
+    private Block[] recent;
+    private int size;
+    private int totalDifficulty;
+    private double totalExpectedHashes;
+    private volatile String chainHash;
+
+    /** verified - number of blocks from genesis known to be valid, lowered whenever a block changes */
+    private final AtomicInteger verified = new AtomicInteger();
+
+    /** lock - guards blocks and the contents of the blocks on the chain */
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /** ledger - transfers and balances by account, guarded by lock */
+    private final Ledger ledger;
+
+    /** blockIndex - positions of the blocks by hash and by transaction ID, guarded by lock */
+    private final BlockIndex blockIndex;
+
+    /**
+     * indexedSize - the blocks below this position are booked in ledger and blockIndex, guarded by lock.
+     * Writers only book changes to those blocks, the background build of a reopened chain books the rest.
+     */
+    private int indexedSize;
+    /** corrupted - positions corrupted before the build booked them, their children no longer hold their hash */
+    private final Set<Integer> corrupted = new HashSet<>();
+    /** indexed - true once ledger and blockIndex hold every block */
+    private volatile boolean indexed;
+    /** indexing - released once the build of a reopened chain is over */
+    private final CountDownLatch indexing = new CountDownLatch(1);
+
+    /** appendLock - serializes all writers, so only one block is mined at a time */
+    private final ReentrantLock appendLock = new ReentrantLock();
+
+    /** store - persists the blocks, null for a chain that only lives in memory */
+    private final BlockStore store;
 
     public BlockChain() {
         blocks = new ArrayList<>();
         chainHash = "";
-        hashesPerSecond = 0;
+        store = null;
+        ledger = new Ledger(ByteBuffer::allocate);
+        blockIndex = new BlockIndex(ByteBuffer::allocate);
+        indexed = true;
+        indexing.countDown();
+    }
+
+    /**
+     * Create a chain backed by a block store, reopening the blocks already stored.
+     * Stored blocks keep their nonce, so nothing is mined again;
+     * only the hash of the latest block is computed to restore the chain hash.
+     * The ledger and the block index are built by a background thread, see index().
+     * @param store - store holding the blocks
+     * @throws IOException if the stored blocks can not be read
+     */
+    public BlockChain(BlockStore store) throws IOException {
+        this.store = store;
+        ledger = new Ledger(store::allocate);
+        blockIndex = new BlockIndex(store::allocate);
+        recent = new Block[RECENT_BLOCKS];
+        size = store.size();
+        for (int i = 0; i < size; i++) {
+            // the difficulty is read straight from the mapped record, old blocks are not decoded
+            addTotals(store.readDifficulty(i));
+        }
+        for (int i = Math.max(0, size - RECENT_BLOCKS); i < size; i++) {
+            Block block = store.read(i);
+            block.chain = this;
+            recent[i % RECENT_BLOCKS] = block;
+        }
+        chainHash = size == 0 ? "" : getLatestBlock().getHash();
+        indexed = size == 0;
+        if (indexed) {
+            indexing.countDown();
+        } else {
+            Thread indexer = new Thread(this::index, "chain-indexer");
+            indexer.setDaemon(true);
+            indexer.start();
+        }
+    }
+
+    /**
+     * @return true once the ledger and the block index hold every block, lookups then never wait
+     */
+    public boolean isIndexed() {
+        return indexed;
+    }
+
+    /**
+     * Book the blocks of a reopened chain in the ledger and the block index, run by the "chain-indexer" thread.
+     * The blocks are booked a chunk at a time under the read lock, so a writer waits for one chunk at most;
+     * the append lock is only taken to book the blocks added meanwhile and publish the result.
+     */
+    private void index() {
+        long start = System.currentTimeMillis();
+        try {
+            while (indexNext(INDEX_CHUNK)) {
+                // writers go on between the chunks
+            }
+            appendLock.lock();
+            try {
+                indexNext(Integer.MAX_VALUE);
+                indexed = true;
+            } finally {
+                appendLock.unlock();
+            }
+            Log.info("Indexed the chain in {} milliseconds", System.currentTimeMillis() - start);
+        } catch (RuntimeException e) {
+            Log.error("Indexing the chain failed", e);
+        } finally {
+            indexing.countDown();
+        }
+    }
+
+    /**
+     * Book the next blocks that are not booked yet.
+     * The hash of a block is taken from its child's previous hash, so no block is hashed again,
+     * except the latest block and blocks corrupted since the chain was opened.
+     * @param max - the most blocks to book
+     * @return true if blocks are left to book
+     */
+    private boolean indexNext(int max) {
+        lock.readLock().lock();
+        try {
+            int end = (int) Math.min(size, (long) indexedSize + max);
+            Block block = indexedSize < end ? block(indexedSize) : null;
+            for (int i = indexedSize; i < end; i++) {
+                Block child = i + 1 < size ? block(i + 1) : null;
+                byte[] hash = child == null || corrupted.contains(i) ? block.hashBytes() : child.previousHashBytes();
+                ledger.add(i, Ledger.transfers(block));
+                blockIndex.add(i, hash, BlockIndex.transactionIds(block));
+                block = child;
+            }
+            // writers read indexedSize under the write lock, so they never run while it changes
+            indexedSize = end;
+            return end < size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Wait until the ledger and the block index of a reopened chain are built
+     */
+    private void awaitIndex() {
+        boolean interrupted = false;
+        while (indexing.getCount() > 0) {
+            try {
+                indexing.await();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @param i - position of a block, 0 <= i < size
+     * @return the block, decoded from the store if it is no longer among the recent blocks
+     */
+    private Block block(int i) {
+        if (store == null) {
+            return blocks.get(i);
+        }
+        if (i >= size - RECENT_BLOCKS) {
+            return recent[i % RECENT_BLOCKS];
+        }
+        try {
+            return store.read(i);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Publish a mined block at the end of the chain, the caller holds the write lock
+     * @param block - block at position size
+     */
+    private void publish(Block block) {
+        block.chain = this;
+        if (store == null) {
+            blocks.add(block);
+        } else {
+            recent[size % RECENT_BLOCKS] = block;
+        }
+        size++;
+        addTotals(block.getDifficulty());
+    }
+
+    private void addTotals(int difficulty) {
+        totalDifficulty += difficulty;
+        totalExpectedHashes += Math.pow(16, difficulty);
     }
 
     /**
@@ -41,68 +273,114 @@ public class BlockChain {
      * After adding x, we have a <-- b <-- c <-- d <-- x. The chain hash now holds the hash of x.
      * The chain hash is not defined within a block but is defined within the block chain.
      * The arrows are used to describe these hash pointers. If b contains the hash of a then we write a <-- b
+     * The parent's memoized hash is used, so adding a block costs exactly one proof of work.
+     * The block's index is set to its position on the chain.
      * @param block
      */
     public void addBlock(Block block) {
+        addBlock(block, null);
+    }
+
+    /**
+     * Add a block mined on behalf of a job. Nothing is added if the job is stopped before a nonce is found.
+     * @param block - the block to add
+     * @param job - job told about the mining progress, null to mine until a nonce is found
+     * @throws java.util.concurrent.CancellationException if the job was cancelled or passed its deadline
+     */
+    void addBlock(Block block, MiningJob job) {
         if (block == null) {
             return;
         }
 
-        // if there is block in the chain, we need use hash of last block as previousHash
-        Block latestBlock = getLatestBlock();
-        if (latestBlock != null) {
-            block.setPreviousHash(latestBlock.proofOfWork());
-        }
-        blocks.add(block);
+        appendLock.lock();
+        try {
+            // if there is block in the chain, we need use hash of last block as previousHash
+            Block latestBlock;
+            lock.readLock().lock();
+            try {
+                block.setIndex(size);
+                latestBlock = getLatestBlock();
+                if (latestBlock != null) {
+                    block.linkTo(latestBlock);
+                }
+            } finally {
+                lock.readLock().unlock();
+            }
 
-        // the chain's hash will be the hash of new added block
-        chainHash = block.proofOfWork();
+            // the block is not visible yet, so it can be mined without blocking readers
+            String hash = block.proofOfWork(job);
+            persist(block);
+            List<Ledger.Transfer> transfers = Ledger.transfers(block);
+            List<byte[]> ids = BlockIndex.transactionIds(block);
+
+            lock.writeLock().lock();
+            try {
+                publish(block);
+                if (indexedSize == block.getIndex()) {
+                    ledger.add(block.getIndex(), transfers);
+                    blockIndex.add(block.getIndex(), block.hashBytes(), ids);
+                    indexedSize++;
+                }
+                // the chain's hash will be the hash of new added block
+                chainHash = hash;
+            } finally {
+                lock.writeLock().unlock();
+            }
+        } finally {
+            appendLock.unlock();
+        }
     }
 
     /**
-     * Compute and return the total difficulty of all blocks on the chain. Each block knows its own difficulty
-     * sum difficulty of all blocks
-     * @return total
+     * Replace the transaction of the block at position i.
+     * This is how the chain gets corrupted, so verification will fail until the chain is repaired.
+     * @param i - position of the block
+     * @param data - new transaction
+     * @return false if the block already holds this transaction
      */
-    public int getTotalDifficulty() {
-        int total = 0;
-        for (Block block: blocks) {
-            total += block.getDifficulty();
+    public boolean setBlockData(int i, String data) {
+        appendLock.lock();
+        lock.writeLock().lock();
+        try {
+            Block block = block(i);
+            if (data.equals(block.getData())) {
+                return false;
+            }
+            if (i < indexedSize) {
+                byte[] old = block.hashBytes();
+                ledger.remove(i, Ledger.transfers(block));
+                blockIndex.removeTransactions(i, BlockIndex.transactionIds(block));
+                block.setData(data);
+                ledger.add(i, Ledger.transfers(block));
+                blockIndex.addTransactions(i, BlockIndex.transactionIds(block));
+                blockIndex.rehash(i, old, block.hashBytes());
+            } else {
+                block.setData(data);
+                corrupted.add(i);
+            }
+            // a block decoded from the store is not linked to the chain, so mark it here as well
+            markDirty(i);
+            persist(block);
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+            appendLock.unlock();
         }
-        return total;
     }
 
     /**
-     * This method computes exactly 2 million hashes and times how long that process takes.
-     * So, hashes per second is approximated as (2 million / number of seconds).
-     * It is run on start up and sets the instance variable hashesPerSecond.
-     * It uses a simple string - "00000000" to hash
+     * Compute and return the total difficulty of all blocks on the chain. Each block knows its own difficulty
+     * sum difficulty of all blocks
+     * @return total
      */
-    public void computeHashesPerSecond() {
-        int cnt = 2000000;
-        int i = 0;
-        long start = System.currentTimeMillis();
-        while (i < cnt) {
-            String input = "00000000";
-            try {
-                MessageDigest digest = MessageDigest.getInstance("SHA-256");
-                byte[] hash = digest.digest(input.getBytes("UTF-8"));
-                StringBuffer hexString = new StringBuffer();
-                for (int j = 0; j < hash.length; j++) {
-                    // convert hex num to string
-                    String hex = Integer.toHexString(0xff & hash[j]);
-                    if (hex.length() == 1) {
-                        hexString.append('0');
-                    }
-                    hexString.append(hex);
-                }
-            } catch (Exception e) {
-                throw new RuntimeException(e);
-            }
-            i++;
+    public int getTotalDifficulty() {
+        lock.readLock().lock();
+        try {
+            // kept up to date as blocks are added
+            return totalDifficulty;
+        } finally {
+            lock.readLock().unlock();
         }
-        long duration = (System.currentTimeMillis() - start) / 1000;
-        hashesPerSecond = (int) (cnt / duration);
     }
 
     /**
@@ -111,10 +389,15 @@ public class BlockChain {
      * @return Block
      */
     public Block getBlock(int i) {
-        if (i < 0 || i >= blocks.size()) {
-            return null;
+        lock.readLock().lock();
+        try {
+            if (i < 0 || i >= size) {
+                return null;
+            }
+            return block(i);
+        } finally {
+            lock.readLock().unlock();
         }
-        return blocks.get(i);
     }
 
     public String getChainHash() {
@@ -122,7 +405,12 @@ public class BlockChain {
     }
 
     public int getChainSize() {
-        return blocks.size();
+        lock.readLock().lock();
+        try {
+            return size;
+        } finally {
+            lock.readLock().unlock();
+        }
     }
 
     public Timestamp getTime() {
@@ -130,11 +418,20 @@ public class BlockChain {
     }
 
     public Block getLatestBlock() {
-        return blocks.isEmpty() ? null : blocks.get(blocks.size() - 1);
+        lock.readLock().lock();
+        try {
+            return size == 0 ? null : block(size - 1);
+        } finally {
+            lock.readLock().unlock();
+        }
     }
 
-    public int getHashesPerSecond() {
-        return hashesPerSecond;
+    /**
+     * The hash rate is measured by the miner workers while they mine, see HashRate
+     * @return hashes per second of all miner workers together
+     */
+    public long getHashesPerSecond() {
+        return Miner.getDefault().getHashesPerSecond();
     }
 
     /**
@@ -143,11 +440,31 @@ public class BlockChain {
      */
 
     public double getTotalExpectedHashes() {
-        double total = 0;
-        for (Block block: blocks) {
-            total += Math.pow(16, block.getDifficulty());
+        lock.readLock().lock();
+        try {
+            // kept up to date as blocks are added
+            return totalExpectedHashes;
+        } finally {
+            lock.readLock().unlock();
         }
-        return total;
+    }
+
+    /**
+     * Lower the verified mark, the block at index and everything after it has to be verified again.
+     * Called by blocks on the chain whenever their hash input changes.
+     * @param index - position of the changed block
+     */
+    void markDirty(int index) {
+        verified.accumulateAndGet(index, Math::min);
+    }
+
+    /**
+     * Verify the blocks that changed or were added since the last verification,
+     * see isChainValid(boolean)
+     * @return string - TRUE or FALSE with error massage
+     */
+    public String isChainValid() {
+        return isChainValid(false);
     }
 
     /**
@@ -160,65 +477,452 @@ public class BlockChain {
      * The first check will involve a computation of a hash in Block 0 and a comparison with the hash pointer in Block 1.
      * If they match and if the proof of work is correct, go and visit the next block in the chain.
      * At the end, check that the chain hash is also correct.
+     * Blocks memoize their hash, so each block is hashed at most once per validation.
+     * Unless fullScan is set, the blocks before the verified mark are skipped,
+     * so verifying a chain that has not changed costs next to nothing.
      *
+     * @param fullScan - check every block from genesis, ignoring the verified mark
      * @return string - TRUE or FALSE with error massage
      */
-    public String isChainValid() {
-        for (int i = 0; i < blocks.size(); i++) {
-            Block block = blocks.get(i);
-            String blockHash = block.calculateHash();
-            String target = new String(new char[block.getDifficulty()]).replace('\0', '0');
-            if (!blockHash.substring(0, block.getDifficulty()).equals(target)) {
-                return "FALSE\nImproper hash on node " + block.getIndex() + " Does not begin with " + target;
+    public String isChainValid(boolean fullScan) {
+        Failure failure = validate(fullScan);
+        return failure == null ? "TRUE" : failure.message;
+    }
+
+    /**
+     * Find the first invalid block and move the verified mark up to it
+     * @param fullScan - check every block from genesis, ignoring the verified mark
+     * @return the first failure, or null if the chain is valid
+     */
+    private Failure validate(boolean fullScan) {
+        lock.readLock().lock();
+        try {
+            int mark = verified.get();
+            int from = fullScan ? 0 : Math.min(mark, size);
+            // long ranges are split between the verifier threads, the lowest failure is reported
+            Failure failure = size - from > VERIFY_CHUNK
+                    ? VERIFIERS.invoke(new Verification(from, from, size, new AtomicInteger(Integer.MAX_VALUE)))
+                    : check(from, size, true);
+            advance(mark, failure == null ? size : failure.index);
+            return failure;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Check the blocks from lo up to hi in order, the caller holds the read lock
+     * @param lo - position of the first block to check
+     * @param hi - position after the last block to check
+     * @param linkFirst - also check that block lo points at its parent
+     * @return the first failure, or null if all blocks are valid
+     */
+    private Failure check(int lo, int hi, boolean linkFirst) {
+        Block parent = linkFirst && lo > 0 ? block(lo - 1) : null;
+        for (int i = lo; i < hi; i++) {
+            Block block = block(i);
+            byte[] blockHash = block.hashBytes();
+            if (!BlockHasher.hasLeadingZeroNibbles(blockHash, block.getDifficulty())) {
+                String target = new String(new char[block.getDifficulty()]).replace('\0', '0');
+                return new Failure(i, "FALSE\nImproper hash on node " + block.getIndex() + " Does not begin with " + target);
             }
 
-            if (i == blocks.size() - 1 && !blockHash.equals(chainHash)) {
-                return "FALSE\nBlock chain's hash not equal to hash of block";
+            if (i == size - 1 && !BlockHasher.toHex(blockHash).equals(chainHash)) {
+                return new Failure(i, "FALSE\nBlock chain's hash not equal to hash of block");
             }
 
-            if (i > 0 && !blocks.get(i - 1).calculateHash().equals(block.getPreviousHash())) {
-                return "Block's hash doesn't equal to hash of parent";
+            if (parent != null && !Arrays.equals(parent.hashBytes(), block.previousHashBytes())) {
+                return new Failure(i, PARENT_MISMATCH);
             }
+            parent = block;
         }
-        return "TRUE";
+        return null;
     }
 
     /**
-     * repair the chain by re calculate hash of all blocks
+     * Move the verified mark up to the blocks a validation found valid,
+     * unless a block changed while the validation was running
+     * @param mark - the mark the validation started from
+     * @param valid - number of blocks from genesis found valid
+     */
+    private void advance(int mark, int valid) {
+        verified.compareAndSet(mark, valid);
+    }
+
+    /**
+     * repair the chain by re calculating the hash of the broken blocks.
+     * Repair starts at the first invalid block and re-mines blocks from there on, in order,
+     * until a block comes out unchanged; then it looks for the next invalid block.
+     * A block whose nonce still gives a proper hash after it is pointed at its repaired parent keeps it,
+     * any other block is mined again from nonce 0 by all miner workers (see Miner).
+     * Blocks are mined on copies while only the append lock is held, and each batch of
+     * "blockchain.repair.batch" repaired blocks (default 64) is swapped in under the write lock,
+     * so readers are not blocked by proof of work.
      */
     public void repairChain() {
-        for (int i = 0; i < blocks.size(); i++) {
-            Block block = blocks.get(i);
-            if (i > 0) {
-                block.setPreviousHash(blocks.get(i - 1).calculateHash());
+        appendLock.lock();
+        try {
+            for (Failure failure = validate(false); failure != null; failure = validate(false)) {
+                remine(failure.index);
             }
-            String hash = block.proofOfWork();
+        } finally {
+            appendLock.unlock();
+        }
+    }
 
-            if (i == blocks.size() - 1) {
-                chainHash = hash;
+    /**
+     * Re-mine the blocks from position first on until one of them does not change.
+     * The caller holds the append lock, so the blocks can only change here.
+     * @param first - position of the first invalid block
+     */
+    private void remine(int first) {
+        Block parent = null;
+        if (first > 0) {
+            lock.readLock().lock();
+            try {
+                parent = block(first - 1);
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        int i = first;
+        boolean changed = true;
+        while (changed) {
+            List<Block> batch;
+            lock.readLock().lock();
+            try {
+                batch = new ArrayList<>(Math.min(REPAIR_BATCH, size - i));
+                for (int j = i; j < size && j < i + REPAIR_BATCH; j++) {
+                    batch.add(block(j));
+                }
+            } finally {
+                lock.readLock().unlock();
+            }
+            if (batch.isEmpty()) {
+                return;
+            }
+
+            List<Block> repaired = new ArrayList<>(batch.size());
+            for (Block block : batch) {
+                Block copy = new Block(block);
+                if (parent != null) {
+                    copy.linkTo(parent);
+                }
+                if (!BlockHasher.hasLeadingZeroNibbles(copy.hashBytes(), copy.getDifficulty())) {
+                    copy.setNonce(0);
+                    copy.proofOfWork();
+                }
+                changed = !Arrays.equals(block.previousHashBytes(), copy.previousHashBytes())
+                        || block.nonce() != copy.nonce();
+                if (!changed) {
+                    break;
+                }
+                repaired.add(copy);
+                parent = copy;
+            }
+
+            lock.writeLock().lock();
+            try {
+                for (Block block : repaired) {
+                    replace(block);
+                }
+                i += repaired.size();
+                if (i >= size - 1) {
+                    // the chain hash has to follow the latest block, whether or not it was mined again
+                    chainHash = block(size - 1).getHash();
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Put a repaired block in place of the block at its position, the caller holds the write lock
+     * @param block - repaired copy of a block on the chain
+     */
+    private void replace(Block block) {
+        int i = block.getIndex();
+        byte[] old = i < indexedSize ? block(i).hashBytes() : null;
+        block.chain = this;
+        if (store == null) {
+            blocks.set(i, block);
+        } else if (i >= size - RECENT_BLOCKS) {
+            recent[i % RECENT_BLOCKS] = block;
+        }
+        if (old != null) {
+            blockIndex.rehash(i, old, block.hashBytes());
+        }
+        persist(block);
+    }
+
+    /**
+     * Write a new or changed block to the store, if there is one
+     * @param block - the block to write
+     */
+    private void persist(Block block) {
+        if (store == null) {
+            return;
+        }
+        try {
+            store.append(block);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * The first invalid block found by a validation
+     */
+    private static final class Failure {
+        private final int index;
+        private final String message;
+
+        private Failure(int index, String message) {
+            this.index = index;
+            this.message = message;
+        }
+    }
+
+    /**
+     * Checks a range of the chain on the verifier pool.
+     * A range longer than VERIFY_CHUNK is split in two halves that are checked in parallel;
+     * each half checks its own blocks, and the link between the halves is checked once both are done.
+     * The failure of the left half wins, so the lowest failing block is reported
+     * with the message a sequential validation would give.
+     * Ranges that start after a failure that has already been found are skipped.
+     */
+    private final class Verification extends RecursiveTask<Failure> {
+        private static final long serialVersionUID = 1L;
+
+        private final int from;
+        private final int lo;
+        private final int hi;
+        private final AtomicInteger firstFailure;
+
+        /**
+         * @param from - first position of the whole validation, its link to the parent is checked
+         * @param lo - first position of this range
+         * @param hi - position after the last block of this range
+         * @param firstFailure - lowest failing position found so far by any range
+         */
+        private Verification(int from, int lo, int hi, AtomicInteger firstFailure) {
+            this.from = from;
+            this.lo = lo;
+            this.hi = hi;
+            this.firstFailure = firstFailure;
+        }
+
+        @Override
+        protected Failure compute() {
+            if (lo > firstFailure.get()) {
+                // a range to the left fails, so nothing found here would be reported
+                return null;
+            }
+            if (hi - lo <= VERIFY_CHUNK) {
+                Failure failure = check(lo, hi, lo == from);
+                if (failure != null) {
+                    firstFailure.accumulateAndGet(failure.index, Math::min);
+                }
+                return failure;
+            }
+            int mid = (lo + hi) >>> 1;
+            // the left half runs first, so low failures are found early and later ranges skipped
+            Verification rightHalf = new Verification(from, mid, hi, firstFailure);
+            rightHalf.fork();
+            Failure failure = new Verification(from, lo, mid, firstFailure).compute();
+            Failure right = rightHalf.join();
+            if (failure != null) {
+                return failure;
+            }
+            // the proof of work of block mid is checked before its link
+            if (right != null && right.index == mid) {
+                return right;
+            }
+            if (!Arrays.equals(block(mid - 1).hashBytes(), block(mid).previousHashBytes())) {
+                return new Failure(mid, PARENT_MISMATCH);
+            }
+            return right;
+        }
+    }
+
+    /**
+     * Copy a range of the chain together with the chain hash.
+     * The blocks are copies, so the snapshot stays consistent while the chain changes.
+     * @param start - position of the first block
+     * @param count - maximum number of blocks
+     * @return the blocks from start (fewer than count at the end of the chain) and the chain hash
+     */
+    public Snapshot snapshot(int start, int count) {
+        lock.readLock().lock();
+        try {
+            int from = Math.max(0, Math.min(start, size));
+            int to = (int) Math.min(size, (long) from + Math.max(0, count));
+            List<Block> copies = new ArrayList<>(to - from);
+            for (int i = from; i < to; i++) {
+                copies.add(new Block(block(i)));
+            }
+            return new Snapshot(copies, chainHash);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * The balance and a page of the transfers of an account, read from the ledger and the blocks of the page only
+     * @param account - name of the account
+     * @param start - position of the first block to show among the blocks with transfers of the account
+     * @param count - the most blocks to show
+     * @return the statement, or null if the account has no transfers on the chain
+     */
+    public Ledger.Statement statement(String account, int start, int count) {
+        awaitIndex();
+        lock.readLock().lock();
+        try {
+            return ledger.statement(account, start, count, this::block);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Find a block by its hash. Unknown hashes are mostly rejected by the index's Bloom filter without locking.
+     * @param hash - hash of the block in hexadecimal, upper or lower case
+     * @return a copy of the block, or null if no block on the chain has this hash
+     */
+    public Block findBlock(String hash) {
+        byte[] key = BlockIndex.parse(hash);
+        if (key == null) {
+            return null;
+        }
+        awaitIndex();
+        if (!blockIndex.mightContain(key)) {
+            return null;
+        }
+        lock.readLock().lock();
+        try {
+            // the index only holds the first bytes of the hashes, and a hash taken from a child
+            // at restart is stale if the block was corrupted before, so the block is checked
+            for (int i : blockIndex.blocks(key)) {
+                Block block = block(i);
+                if (Arrays.equals(block.hashBytes(), key)) {
+                    return new Block(block);
+                }
             }
+            return null;
+        } finally {
+            lock.readLock().unlock();
         }
     }
 
+    /**
+     * Find the blocks holding a transaction. Unknown IDs are mostly rejected by the index's Bloom filter without locking.
+     * @param id - ID of the transaction, see Mempool.transactionId
+     * @return ascending positions of the blocks holding the transaction, or null if it is not on the chain
+     */
+    public int[] findTransaction(String id) {
+        byte[] key = BlockIndex.parse(id);
+        if (key == null) {
+            return null;
+        }
+        awaitIndex();
+        if (!blockIndex.mightContain(key)) {
+            return null;
+        }
+        lock.readLock().lock();
+        try {
+            // the index only holds the first bytes of the IDs, so the blocks are checked
+            int[] positions = blockIndex.transactions(key);
+            int found = 0;
+            for (int i : positions) {
+                if (BlockIndex.holds(block(i), key)) {
+                    positions[found++] = i;
+                }
+            }
+            if (found == 0) {
+                return null;
+            }
+            positions = Arrays.copyOf(positions, found);
+            Arrays.sort(positions);
+            return positions;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return the entire chain as a JSON document, taken from a consistent snapshot
+     */
+    public String toJSONString() {
+        Snapshot snapshot = snapshot(0, Integer.MAX_VALUE);
+        return toJSONString(snapshot.getBlocks(), snapshot.getChainHash());
+    }
+
+    /**
+     * @param blocks - blocks to show
+     * @param chainHash - hash of the chain
+     * @return the blocks as the JSON document used to view the chain
+     */
+    public static String toJSONString(List<Block> blocks, String chainHash) {
+        StringBuilder sb = new StringBuilder("{\"ds_chain\": [");
+        for (int i = 0; i < blocks.size(); i++) {
+            if (i > 0) {
+                sb.append(",");
+            }
+            sb.append(blocks.get(i).toString());
+        }
+        sb.append("], \"chainHash\":\"" + chainHash + "\"");
+        return sb.toString();
+    }
+
     /**
      * @return a String representation of the entire chain
      */
     @Override
     public String toString() {
-        return "Current size of chain: " + getChainSize() + "\n"
-                + "Difficulty of most recent block: " + getLatestBlock().getDifficulty() + "\n"
-                + "Total difficulty for all blocks: " + getTotalDifficulty() + "\n"
-                + "Approximate hashes per second on this machine: " + hashesPerSecond + "\n"
-                + "Expected total hashes required for the whole chain: " + getTotalExpectedHashes() + "\n"
-                + "Nonce for most recent block: " + getLatestBlock().getNonce() + "\n"
-                + "Chain hash: " + chainHash;
+        lock.readLock().lock();
+        try {
+            return "Current size of chain: " + getChainSize() + "\n"
+                    + "Difficulty of most recent block: " + getLatestBlock().getDifficulty() + "\n"
+                    + "Total difficulty for all blocks: " + getTotalDifficulty() + "\n"
+                    + "Approximate hashes per second on this machine: " + getHashesPerSecond() + "\n"
+                    + "Hashes per second of each miner worker: "
+                    + Arrays.toString(Miner.getDefault().getWorkerHashesPerSecond()) + "\n"
+                    + "Expected total hashes required for the whole chain: " + getTotalExpectedHashes() + "\n"
+                    + "Nonce for most recent block: " + getLatestBlock().getNonce() + "\n"
+                    + "Chain hash: " + chainHash;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * A consistent copy of a range of blocks and the chain hash
+     */
+    public static class Snapshot {
+        private final List<Block> blocks;
+        private final String chainHash;
+
+        Snapshot(List<Block> blocks, String chainHash) {
+            this.blocks = blocks;
+            this.chainHash = chainHash;
+        }
+
+        public List<Block> getBlocks() {
+            return blocks;
+        }
+
+        public String getChainHash() {
+            return chainHash;
+        }
     }
 
     /**
      * This routine acts as a test driver for Blockchain.
      * It will begin by creating a BlockChain object and then adding the Genesis block to the chain.
      * The Genesis block will be created with an empty string as the previous hash and a difficulty of 2.
-     * On start up, this routine will also establish the hashes per second instance member.
+     * The hashes per second are measured by the miner while blocks are mined, there is no start up benchmark.
      * All blocks added to the Blockchain will have a difficulty passed in to the program by the user at run time.
      * All hashes will have the proper number of zero hex digits representing the most significant nibbles in the hash.
      * A nibble is 4 bits. If the difficulty is specified as three,
@@ -232,8 +936,6 @@ public class BlockChain {
         Block genesisBlock = new Block(0, blockChain.getTime(), "", 2);
         blockChain.addBlock(genesisBlock);
 
-        blockChain.computeHashesPerSecond();
-
         Scanner scanner = new Scanner(System.in);
         while (true) {
             System.out.println("0. View basic blockchain status.\n"
@@ -293,15 +995,7 @@ public class BlockChain {
                      * option 3, display the entire Blockchain contents as a correctly formed JSON document.
                      */
                     System.out.println("View the Blockchain");
-                    StringBuilder sb = new StringBuilder("{\"ds_chain\": [");
-                    for (int i = 0; i < blockChain.getChainSize(); i++) {
-                        if (i > 0) {
-                            sb.append(",");
-                        }
-                        sb.append(blockChain.getBlock(i).toString());
-                    }
-                    sb.append("], \"chainHash\":\"" + blockChain.getChainHash() + "\"");
-                    System.out.println(sb);
+                    System.out.println(blockChain.toJSONString());
                     break;
                 case 4:
                     /**
@@ -316,13 +1010,11 @@ public class BlockChain {
                     if (index >= blockChain.getChainSize() || index < 0) {
                         System.out.println("Invalid block id, max index is " + (blockChain.getChainSize() - 1));
                     }
-                    Block block = blockChain.getBlock(index);
                     System.out.println("Enter new data for block " + index);
                     String newData = scanner.nextLine();
-                    if (newData.equals(block.getData())) {
+                    if (!blockChain.setBlockData(index, newData)) {
                         System.out.println("New data is equal to old");
                     } else {
-                        block.setData(newData);
                         System.out.println("Block " + index + " now holds " + newData);
                     }
                     break;
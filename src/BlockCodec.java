@@ -0,0 +1,223 @@
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * name: Enliang Wu
+ * email: enliangw@andrew.cmu.edu
+ *
+ * This class writes and reads blocks as compact binary records:
+ * index, timestamp millis, data, previous hash, nonce and difficulty.
+ * The data of a batch block is written as the length BATCH followed by the number of transactions and each transaction,
+ * so records of single transaction blocks are unchanged.
+ * The previous hash is stored as 32 raw bytes instead of 64 hex characters,
+ * and fields are copied straight from and into the block's primitive representation.
+ * Records are read from byte arrays or buffers, and every length is checked against the bytes left
+ * before anything is allocated, so a malformed record is rejected instead of exhausting the heap.
+ */
+public final class BlockCodec {
+    private static final int NO_HASH = 0;
+    private static final int RAW_HASH = 1;
+    private static final int TEXT_HASH = 2;
+    // lengths below -1 are never written for data, -1 means null
+    private static final int BATCH = -2;
+
+    private BlockCodec() {
+    }
+
+    /**
+     * @param out - destination
+     * @param block - block to write
+     * @throws IOException if the destination fails
+     */
+    public static void writeBlock(DataOutput out, Block block) throws IOException {
+        out.writeInt(block.getIndex());
+        out.writeLong(block.createdMillis());
+        byte[][] transactions = block.transactionBytes();
+        if (transactions == null) {
+            writeBytes(out, block.dataBytes());
+        } else {
+            out.writeInt(BATCH);
+            out.writeInt(transactions.length);
+            for (byte[] transaction : transactions) {
+                writeBytes(out, transaction);
+            }
+        }
+        writeHash(out, block.previousHashBytes());
+        out.writeLong(block.nonce());
+        out.writeInt(block.getDifficulty());
+    }
+
+    /**
+     * @param in - source reading from a byte array, so available() is the number of bytes left
+     * @return the block, with the nonce found by its proof of work
+     * @throws IOException if the source fails, ends early or holds an invalid record
+     */
+    public static Block readBlock(DataInputStream in) throws IOException {
+        int index = in.readInt();
+        long created = in.readLong();
+        int length = in.readInt();
+        byte[] data = null;
+        byte[][] transactions = null;
+        if (length == BATCH) {
+            int count = in.readInt();
+            // every transaction takes at least its 4 byte length
+            if (count <= 0 || count > in.available() / 4) {
+                throw new IOException("Invalid transaction count " + count);
+            }
+            List<byte[]> list = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                byte[] transaction = readBytes(in);
+                if (transaction == null) {
+                    throw new IOException("Invalid transaction record");
+                }
+                list.add(transaction);
+            }
+            transactions = list.toArray(new byte[0][]);
+        } else {
+            data = readBytes(in, length);
+        }
+        byte[] previousHash = readHash(in);
+        long nonce = in.readLong();
+        int difficulty = in.readInt();
+        return new Block(index, created, data, transactions, previousHash, nonce, difficulty);
+    }
+
+    /**
+     * Read a block record straight from a buffer, used for memory-mapped records
+     * @param in - buffer positioned at the record
+     * @return the block, with the nonce found by its proof of work
+     * @throws IllegalArgumentException if the record is invalid
+     */
+    public static Block readBlock(ByteBuffer in) {
+        int index = in.getInt();
+        long created = in.getLong();
+        int length = in.getInt();
+        byte[] data = null;
+        byte[][] transactions = null;
+        if (length == BATCH) {
+            int count = in.getInt();
+            if (count <= 0 || count > in.remaining() / 4) {
+                throw new IllegalArgumentException("Invalid transaction count " + count);
+            }
+            transactions = new byte[count][];
+            for (int i = 0; i < transactions.length; i++) {
+                transactions[i] = readBytes(in, in.getInt());
+                if (transactions[i] == null) {
+                    throw new IllegalArgumentException("Invalid transaction record");
+                }
+            }
+        } else {
+            data = readBytes(in, length);
+        }
+        byte[] previousHash;
+        switch (in.get()) {
+            case NO_HASH:
+                previousHash = new byte[0];
+                break;
+            case RAW_HASH:
+                previousHash = new byte[BlockHasher.HASH_LENGTH];
+                in.get(previousHash);
+                break;
+            case TEXT_HASH:
+                byte[] text = readBytes(in, in.getInt());
+                if (text == null) {
+                    throw new IllegalArgumentException("Invalid hash record");
+                }
+                previousHash = BlockHasher.fromHex(new String(text, StandardCharsets.UTF_8));
+                break;
+            default:
+                throw new IllegalArgumentException("Invalid hash record");
+        }
+        long nonce = in.getLong();
+        int difficulty = in.getInt();
+        return new Block(index, created, data, transactions, previousHash, nonce, difficulty);
+    }
+
+    private static byte[] readBytes(ByteBuffer in, int length) {
+        if (length == -1) {
+            return null;
+        }
+        if (length < 0 || length > in.remaining()) {
+            throw new IllegalArgumentException("Invalid length " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Write a nullable string as its UTF-8 length (-1 for null) and bytes
+     */
+    public static void writeString(DataOutput out, String s) throws IOException {
+        writeBytes(out, s == null ? null : s.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Read a string written by writeString
+     */
+    public static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = readBytes(in);
+        return bytes == null ? null : new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeBytes(DataOutput out, byte[] bytes) throws IOException {
+        if (bytes == null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        return readBytes(in, in.readInt());
+    }
+
+    private static byte[] readBytes(DataInputStream in, int length) throws IOException {
+        if (length == -1) {
+            return null;
+        }
+        if (length < 0 || length > in.available()) {
+            throw new IOException("Invalid length " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    private static void writeHash(DataOutput out, byte[] hash) throws IOException {
+        if (hash.length == 0) {
+            out.writeByte(NO_HASH);
+        } else if (hash.length == BlockHasher.HASH_LENGTH) {
+            out.writeByte(RAW_HASH);
+            out.write(hash);
+        } else {
+            out.writeByte(TEXT_HASH);
+            writeString(out, BlockHasher.toHex(hash));
+        }
+    }
+
+    private static byte[] readHash(DataInputStream in) throws IOException {
+        switch (in.readByte()) {
+            case NO_HASH:
+                return new byte[0];
+            case RAW_HASH:
+                byte[] hash = new byte[BlockHasher.HASH_LENGTH];
+                in.readFully(hash);
+                return hash;
+            case TEXT_HASH:
+                try {
+                    return BlockHasher.fromHex(readString(in));
+                } catch (IllegalArgumentException e) {
+                    throw new IOException("Invalid hash record", e);
+                }
+            default:
+                throw new IOException("Invalid hash record");
+        }
+    }
+}
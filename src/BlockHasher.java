@@ -0,0 +1,122 @@
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * name: Enliang Wu
+ * email: enliangw@andrew.cmu.edu
+ *
+ * This class computes block hashes without allocating per attempt.
+ * The hash input of a block is header prefix + nonce + header suffix (see Block.calculateHash).
+ * The prefix and suffix are serialized once per block, the nonce is written as decimal digits
+ * into a reused buffer, and the digest is written into a caller supplied 32 byte array.
+ * Each thread owns one instance, so MessageDigest and buffers are never shared.
+ */
+final class BlockHasher {
+    static final int HASH_LENGTH = 32;
+
+    private static final ThreadLocal<BlockHasher> local = ThreadLocal.withInitial(BlockHasher::new);
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+    private final MessageDigest digest;
+    // a long has at most 19 digits
+    private final byte[] digits = new byte[20];
+
+    private BlockHasher() {
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @return the hasher owned by the current thread
+     */
+    static BlockHasher get() {
+        return local.get();
+    }
+
+    /**
+     * Compute SHA-256 of prefix + decimal nonce + suffix into out
+     * @param prefix - serialized header before the nonce
+     * @param nonce - candidate nonce, not negative
+     * @param suffix - serialized header after the nonce
+     * @param out - array of at least 32 bytes receiving the digest
+     */
+    void hash(byte[] prefix, long nonce, byte[] suffix, byte[] out) {
+        int pos = digits.length;
+        do {
+            digits[--pos] = (byte) ('0' + (nonce % 10));
+            nonce /= 10;
+        } while (nonce != 0);
+
+        digest.update(prefix);
+        digest.update(digits, pos, digits.length - pos);
+        digest.update(suffix);
+        try {
+            digest.digest(out, 0, HASH_LENGTH);
+        } catch (DigestException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @param bytes - any bytes
+     * @return their SHA-256
+     */
+    byte[] digest(byte[] bytes) {
+        return digest.digest(bytes);
+    }
+
+    /**
+     * Check the leading hex digits of a hash directly on the digest bytes
+     * @param hash - raw digest
+     * @param difficulty - required number of leading zero nibbles
+     * @return true if the first difficulty nibbles are all 0
+     */
+    static boolean hasLeadingZeroNibbles(byte[] hash, int difficulty) {
+        int bytes = difficulty >> 1;
+        for (int i = 0; i < bytes; i++) {
+            if (hash[i] != 0) {
+                return false;
+            }
+        }
+        // an odd difficulty also needs the high nibble of the next byte
+        return (difficulty & 1) == 0 || (hash[bytes] & 0xF0) == 0;
+    }
+
+    /**
+     * @param hash - raw digest
+     * @return the digest as uppercase hexadecimal
+     */
+    static String toHex(byte[] hash) {
+        char[] chars = new char[hash.length * 2];
+        for (int i = 0; i < hash.length; i++) {
+            chars[i * 2] = HEX[(hash[i] >> 4) & 0xF];
+            chars[i * 2 + 1] = HEX[hash[i] & 0xF];
+        }
+        return new String(chars);
+    }
+
+    /**
+     * @param hex - hexadecimal digits, upper or lower case
+     * @return the bytes they spell
+     * @throws IllegalArgumentException if hex is not an even number of hex digits
+     */
+    static byte[] fromHex(String hex) {
+        if ((hex.length() & 1) != 0) {
+            throw new IllegalArgumentException("Invalid hash " + hex);
+        }
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            int high = Character.digit(hex.charAt(i * 2), 16);
+            int low = Character.digit(hex.charAt(i * 2 + 1), 16);
+            if (high < 0 || low < 0) {
+                throw new IllegalArgumentException("Invalid hash " + hex);
+            }
+            bytes[i] = (byte) (high << 4 | low);
+        }
+        return bytes;
+    }
+}
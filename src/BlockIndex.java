@@ -0,0 +1,210 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.IntFunction;
+
+/**
+ * name: Enliang Wu
+ * email: enliangw@andrew.cmu.edu
+ *
+ * This class finds the blocks of the chain by their hash and by the IDs of their transactions
+ * (the SHA-256 of a transaction, given in hexadecimal by Mempool.transactionId).
+ * A transaction that was added more than once is found in all its blocks.
+ * Hashes and IDs are kept as their first 8 bytes in two IndexTables, which a chain backed by a BlockStore
+ * keeps in memory-mapped scratch files, so the heap does not grow with the chain;
+ * the positions found for a key are candidates that BlockChain checks against their blocks.
+ * A Bloom filter over all hashes and IDs ever indexed answers most lookups of unknown keys
+ * without taking the chain's lock; it is sized for "blockchain.index.bloom" keys (default 1048576)
+ * at most about 1% false positives, and only grows less selective when more keys are indexed.
+ * The tables are kept up to date by BlockChain, which guards them with its lock; the filter needs no lock.
+ */
+public class BlockIndex {
+    private static final int EXPECTED = Math.max(1024, Integer.getInteger("blockchain.index.bloom", 1 << 20));
+    // at least 10 bits and 7 probes per key give at most about 1% false positives
+    private static final int PROBES = 7;
+    private static final int HEX_LENGTH = BlockHasher.HASH_LENGTH * 2;
+
+    /** bloom - bits set by every indexed key, a key with any of its bits clear was never indexed */
+    private final AtomicLongArray bloom = new AtomicLongArray(Integer.highestOneBit(EXPECTED * 10 / 64 - 1) << 1);
+    private final long bloomMask = bloom.length() * 64L - 1;
+
+    /** blocks - position of the block by hash */
+    private final IndexTable blocks;
+    /** transactions - positions of the blocks holding a transaction by its ID */
+    private final IndexTable transactions;
+
+    /**
+     * @param allocator - hands out zeroed buffers of the given number of bytes for the tables
+     */
+    BlockIndex(IntFunction<ByteBuffer> allocator) {
+        blocks = new IndexTable(allocator);
+        transactions = new IndexTable(allocator);
+    }
+
+    /**
+     * @param block - a block
+     * @return the raw IDs of the block's transactions, none for a block without data
+     */
+    static List<byte[]> transactionIds(Block block) {
+        List<byte[]> ids = new ArrayList<>();
+        byte[][] batch = block.transactionBytes();
+        if (batch == null) {
+            if (block.dataBytes() != null) {
+                ids.add(BlockHasher.get().digest(block.dataBytes()));
+            }
+        } else {
+            for (byte[] transaction : batch) {
+                ids.add(BlockHasher.get().digest(transaction));
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * @param block - a block
+     * @param id - raw ID of a transaction
+     * @return true if the block holds the transaction
+     */
+    static boolean holds(Block block, byte[] id) {
+        for (byte[] held : transactionIds(block)) {
+            if (Arrays.equals(held, id)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param key - a hash or transaction ID as typed by a client
+     * @return the raw hash, or null if the key is not a SHA-256 hash in hexadecimal
+     */
+    static byte[] parse(String key) {
+        if (key == null) {
+            return null;
+        }
+        key = key.trim();
+        if (key.length() != HEX_LENGTH) {
+            return null;
+        }
+        try {
+            return BlockHasher.fromHex(key);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Index the block published at the end of the chain
+     * @param index - position of the block
+     * @param hash - raw hash of the block
+     * @param ids - raw IDs of the block's transactions
+     */
+    void add(int index, byte[] hash, List<byte[]> ids) {
+        blocks.put(IndexTable.key(hash), index);
+        remember(hash);
+        addTransactions(index, ids);
+    }
+
+    /**
+     * Index the new hash of the block at a position, after it was repaired or corrupted
+     * @param index - position of the block
+     * @param old - raw hash the block was indexed with
+     * @param hash - new raw hash of the block
+     */
+    void rehash(int index, byte[] old, byte[] hash) {
+        if (!Arrays.equals(old, hash)) {
+            blocks.remove(IndexTable.key(old), index);
+            blocks.put(IndexTable.key(hash), index);
+            remember(hash);
+        }
+    }
+
+    /**
+     * Index transactions of the block at a position
+     * @param index - position of the block
+     * @param ids - raw IDs of the transactions
+     */
+    void addTransactions(int index, List<byte[]> ids) {
+        for (long key : keys(ids)) {
+            transactions.put(key, index);
+        }
+        for (byte[] id : ids) {
+            remember(id);
+        }
+    }
+
+    /**
+     * Forget transactions of the block at a position, when they are replaced
+     * @param index - position of the block
+     * @param ids - raw IDs of the transactions
+     */
+    void removeTransactions(int index, List<byte[]> ids) {
+        for (long key : keys(ids)) {
+            transactions.remove(key, index);
+        }
+    }
+
+    /**
+     * @param hash - raw block hash
+     * @return positions of the blocks that may have this hash
+     */
+    int[] blocks(byte[] hash) {
+        return blocks.get(IndexTable.key(hash));
+    }
+
+    /**
+     * @param id - raw transaction ID
+     * @return positions of the blocks that may hold the transaction, in no particular order
+     */
+    int[] transactions(byte[] id) {
+        return transactions.get(IndexTable.key(id));
+    }
+
+    /**
+     * @return the distinct keys of some IDs, a block holding a transaction twice is indexed once for it
+     */
+    private static long[] keys(List<byte[]> ids) {
+        long[] keys = new long[ids.size()];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = IndexTable.key(ids.get(i));
+        }
+        return Arrays.stream(keys).distinct().toArray();
+    }
+
+    /**
+     * Check the Bloom filter, safe without the chain's lock
+     * @param key - raw hash or transaction ID
+     * @return false if the key was never indexed, true if it may have been
+     */
+    boolean mightContain(byte[] key) {
+        ByteBuffer bytes = ByteBuffer.wrap(key);
+        long h1 = bytes.getLong(0);
+        long h2 = bytes.getLong(8) | 1;
+        for (int i = 0; i < PROBES; i++) {
+            long bit = (h1 + i * h2) & bloomMask;
+            if ((bloom.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Set the bits of a key in the Bloom filter. The keys are SHA-256 hashes,
+     * so their own bits serve as the two hash functions the probes are derived from.
+     */
+    private void remember(byte[] key) {
+        ByteBuffer bytes = ByteBuffer.wrap(key);
+        long h1 = bytes.getLong(0);
+        long h2 = bytes.getLong(8) | 1;
+        for (int i = 0; i < PROBES; i++) {
+            long bit = (h1 + i * h2) & bloomMask;
+            int word = (int) (bit >>> 6);
+            long mask = 1L << bit;
+            // only the writer sets bits, readers may run at the same time
+            bloom.getAndAccumulate(word, mask, (a, b) -> a | b);
+        }
+    }
+}
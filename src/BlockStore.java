@@ -0,0 +1,347 @@
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * name: Enliang Wu
+ * email: enliangw@andrew.cmu.edu
+ *
+ * This class persists the chain as an append-only log of block records.
+ * The log is split into segment files of about "blockchain.store.segment.bytes" bytes (default 64 MB),
+ * at most 2 GB - 1 since a segment is mapped as one buffer.
+ * A record is the payload length, the block written by BlockCodec and a CRC32 of the payload.
+ * A block that changes (corruption or repair) is appended again; the latest record of an index wins.
+ * An offset index maps every block index to the segment and position of its latest record,
+ * and records are read back through read-only memory mappings of the segments.
+ *
+ * Appends are forced to disk in batches: after "blockchain.store.fsync.records" appends (default 64)
+ * or "blockchain.store.fsync.millis" milliseconds (default 100), whichever comes first.
+ * A background flusher forces the last batch to disk once it is that old even when no more appends come,
+ * and closing the store forces whatever is left.
+ * A record torn by a crash at the end of the log is dropped when the store is opened.
+ */
+public class BlockStore implements Closeable {
+    private static final String SUFFIX = ".log";
+    private static final int RECORD_OVERHEAD = 8;
+    // a position is packed into a long: the segment number above SEGMENT_SHIFT and the offset below it
+    private static final int SEGMENT_SHIFT = 40;
+
+    private final Path dir;
+    private final long segmentBytes = segmentBytes();
+    private final int fsyncRecords = Integer.getInteger("blockchain.store.fsync.records", 64);
+    private final long fsyncMillis = Long.getLong("blockchain.store.fsync.millis", 100);
+
+    private static final long OFFSET_MASK = (1L << SEGMENT_SHIFT) - 1;
+
+    // positions and maps are read without locking, writers publish new arrays
+    private volatile long[] positions = new long[1024];
+    private volatile MappedByteBuffer[] maps = new MappedByteBuffer[0];
+    private int size;
+    private int segment;
+    private FileChannel channel;
+    private int unsynced;
+    private long lastSync = System.currentTimeMillis();
+    /** flusher - forces appends older than fsyncMillis to disk once the appends stop */
+    private final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "store-flusher");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private BlockStore(Path dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * Open the store in a directory, creating it if needed, and rebuild the offset index
+     * @param dir - directory holding the segment files
+     * @return the store, positioned to append after the last complete record
+     * @throws IOException if the log can not be read
+     */
+    public static BlockStore open(Path dir) throws IOException {
+        Files.createDirectories(dir);
+        BlockStore store = new BlockStore(dir);
+        store.recover();
+        long period = Math.max(1, store.fsyncMillis);
+        store.flusher.scheduleWithFixedDelay(store::flush, period, period, TimeUnit.MILLISECONDS);
+        return store;
+    }
+
+    /**
+     * @return the segment size to roll at, clamped to the largest buffer a segment can be mapped into
+     */
+    private static long segmentBytes() {
+        long bytes = Long.getLong("blockchain.store.segment.bytes", 64L * 1024 * 1024);
+        if (bytes > Integer.MAX_VALUE) {
+            Log.warn("blockchain.store.segment.bytes {} is larger than a mapping can hold, using {}",
+                    bytes, Integer.MAX_VALUE);
+            return Integer.MAX_VALUE;
+        }
+        return bytes;
+    }
+
+    /**
+     * @return the number of blocks in the store
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Append a block record, a block that is already stored is superseded
+     * @param block - block to persist
+     * @throws IOException if the record can not be written
+     */
+    public synchronized void append(Block block) throws IOException {
+        byte[] record = encode(block);
+        if (channel.size() > 0 && channel.size() + record.length > segmentBytes) {
+            roll();
+        }
+        long offset = channel.size();
+        ByteBuffer buffer = ByteBuffer.wrap(record);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+
+        int index = block.getIndex();
+        if (index >= positions.length) {
+            positions = Arrays.copyOf(positions, Math.max(index + 1, positions.length * 2));
+        }
+        positions[index] = ((long) segment << SEGMENT_SHIFT) | offset;
+        size = Math.max(size, index + 1);
+
+        unsynced++;
+        if (unsynced >= fsyncRecords || System.currentTimeMillis() - lastSync >= fsyncMillis) {
+            sync();
+        }
+    }
+
+    /**
+     * Read the latest record of one block from the mapped segment.
+     * Records are only checked against their CRC when the store is opened,
+     * so reading is a copy out of the page cache and a decode.
+     * May be called by several threads at once.
+     * @param index - position of the block
+     * @return the block
+     * @throws IOException if the segment can not be mapped
+     */
+    public Block read(int index) throws IOException {
+        return BlockCodec.readBlock(record(positions[index]));
+    }
+
+    /**
+     * Read only the difficulty of a block, without decoding the record
+     * @param index - position of the block
+     * @return the block's difficulty
+     * @throws IOException if the segment can not be mapped
+     */
+    public int readDifficulty(int index) throws IOException {
+        ByteBuffer payload = record(positions[index]);
+        // the difficulty is the last field of a block record
+        return payload.getInt(payload.limit() - 4);
+    }
+
+    /**
+     * @param position - segment and offset of a record
+     * @return a buffer over the record's payload in the mapped segment
+     */
+    private ByteBuffer record(long position) throws IOException {
+        int s = (int) (position >>> SEGMENT_SHIFT);
+        int offset = (int) (position & OFFSET_MASK);
+        int length = mapped(s, offset + 4).getInt(offset);
+        ByteBuffer payload = mapped(s, offset + 4 + length).duplicate();
+        payload.limit(offset + 4 + length).position(offset + 4);
+        return payload;
+    }
+
+    /**
+     * @param s - segment number
+     * @param end - offset the mapping has to reach
+     * @return a read-only mapping of the segment that covers end
+     */
+    private ByteBuffer mapped(int s, long end) throws IOException {
+        MappedByteBuffer[] current = maps;
+        if (s < current.length && current[s] != null && current[s].capacity() >= end) {
+            return current[s];
+        }
+        synchronized (this) {
+            // map the whole segment again when records were appended past the old mapping
+            try (FileChannel segmentChannel = FileChannel.open(segmentPath(s))) {
+                MappedByteBuffer[] updated = Arrays.copyOf(maps, Math.max(s + 1, maps.length));
+                updated[s] = segmentChannel.map(FileChannel.MapMode.READ_ONLY, 0, segmentChannel.size());
+                maps = updated;
+                return updated[s];
+            }
+        }
+    }
+
+    /**
+     * Map a scratch file in the store's directory, used to keep the chain's indexes off the heap.
+     * The file is deleted as soon as it is opened, so it goes away with its mapping and never outlives the process.
+     * @param bytes - size of the buffer
+     * @return a zeroed read-write buffer backed by the file
+     */
+    public ByteBuffer allocate(int bytes) {
+        try {
+            Path file = Files.createTempFile(dir, "scratch", ".tmp");
+            try (FileChannel scratch = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                    StandardOpenOption.DELETE_ON_CLOSE)) {
+                return scratch.map(FileChannel.MapMode.READ_WRITE, 0, bytes);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Force all appended records to disk
+     * @throws IOException if the log can not be forced
+     */
+    public synchronized void sync() throws IOException {
+        channel.force(false);
+        unsynced = 0;
+        lastSync = System.currentTimeMillis();
+    }
+
+    /**
+     * Force the unsynced appends to disk if the oldest sync is due, called by the flusher
+     */
+    private synchronized void flush() {
+        if (unsynced == 0 || !channel.isOpen() || System.currentTimeMillis() - lastSync < fsyncMillis) {
+            return;
+        }
+        try {
+            sync();
+        } catch (IOException e) {
+            Log.error("Forcing the block store to disk failed", e);
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        flusher.shutdown();
+        sync();
+        channel.close();
+    }
+
+    /**
+     * Scan every segment to rebuild the offset index and cut off a torn last record
+     */
+    private void recover() throws IOException {
+        List<Integer> segments = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*" + SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                segments.add(Integer.parseInt(name.substring(0, name.length() - SUFFIX.length())));
+            }
+        }
+        segments.sort(null);
+
+        long validEnd = 0;
+        for (int s : segments) {
+            segment = s;
+            validEnd = scan(s);
+        }
+        channel = FileChannel.open(segmentPath(segment),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        if (channel.size() > validEnd) {
+            Log.warn("Dropping torn record at the end of segment {}", segment);
+            channel.truncate(validEnd);
+        }
+        channel.position(channel.size());
+    }
+
+    /**
+     * Index the records of one segment
+     * @return the offset after the last complete record
+     */
+    private long scan(int s) throws IOException {
+        long offset = 0;
+        long end = Files.size(segmentPath(s));
+        if (end > Integer.MAX_VALUE) {
+            // offsets within a segment are read through one mapping, which can not reach past 2 GB
+            throw new IOException("Segment " + s + " is larger than a mapping can hold");
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(segmentPath(s)), 1 << 16))) {
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    return offset;
+                }
+                if (length < 0 || offset + RECORD_OVERHEAD + length > end) {
+                    return offset;
+                }
+                byte[] payload = new byte[length];
+                int crc;
+                try {
+                    in.readFully(payload);
+                    crc = in.readInt();
+                } catch (EOFException e) {
+                    return offset;
+                }
+                if (crc != crc(payload)) {
+                    return offset;
+                }
+                // the index is the first field of a block record
+                int index = ByteBuffer.wrap(payload).getInt();
+                if (index >= positions.length) {
+                    positions = Arrays.copyOf(positions, Math.max(index + 1, positions.length * 2));
+                }
+                positions[index] = ((long) s << SEGMENT_SHIFT) | offset;
+                size = Math.max(size, index + 1);
+                offset += RECORD_OVERHEAD + length;
+            }
+        }
+    }
+
+    private void roll() throws IOException {
+        sync();
+        channel.close();
+        segment++;
+        channel = FileChannel.open(segmentPath(segment),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    private Path segmentPath(int s) {
+        return dir.resolve(String.format("%020d", s) + SUFFIX);
+    }
+
+    static byte[] encode(Block block) throws IOException {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream(128);
+        BlockCodec.writeBlock(new DataOutputStream(payload), block);
+        byte[] bytes = payload.toByteArray();
+
+        ByteArrayOutputStream record = new ByteArrayOutputStream(bytes.length + RECORD_OVERHEAD);
+        DataOutputStream out = new DataOutputStream(record);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+        out.writeInt(crc(bytes));
+        return record.toByteArray();
+    }
+
+    private static int crc(byte[] bytes) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        return (int) crc.getValue();
+    }
+}
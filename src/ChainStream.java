@@ -0,0 +1,52 @@
+/**
+ * name: Enliang Wu
+ * email: enliangw@andrew.cmu.edu
+ *
+ * This class streams a range of the chain as a sequence of responses,
+ * each carrying one page of blocks ("blockchain.stream.page" blocks, default 256).
+ * Every response except the last one is marked with more = true.
+ * Only one page is copied at a time, so memory stays bounded however long the chain is.
+ * Each page is a consistent snapshot; blocks appended after the stream was opened are not included.
+ */
+public class ChainStream {
+    private static final int PAGE = Math.max(1, Integer.getInteger("blockchain.stream.page", 256));
+
+    private final BlockChain blockChain;
+    private final int end;
+    private int next;
+    private boolean done;
+
+    /**
+     * @param blockChain - chain to stream
+     * @param start - position of the first block
+     * @param count - number of blocks, 0 or less streams up to the end of the chain
+     */
+    public ChainStream(BlockChain blockChain, int start, int count) {
+        int size = blockChain.getChainSize();
+        this.blockChain = blockChain;
+        this.next = start;
+        this.end = count <= 0 ? size : (int) Math.min(size, (long) start + count);
+    }
+
+    /**
+     * @return true until the last page has been returned
+     */
+    public boolean hasNext() {
+        return !done;
+    }
+
+    /**
+     * @return the response holding the next page of blocks
+     */
+    public ResponseMessage next() {
+        BlockChain.Snapshot page = blockChain.snapshot(next, Math.min(PAGE, end - next));
+        next += page.getBlocks().size();
+        done = next >= end || page.getBlocks().isEmpty();
+
+        ResponseMessage responseMessage = new ResponseMessage(true, null, 0, null);
+        responseMessage.setBlocks(page.getBlocks());
+        responseMessage.setChainHash(page.getChainHash());
+        responseMessage.setMore(!done);
+        return responseMessage;
+    }
+}
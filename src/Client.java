@@ -1,9 +1,13 @@
-import com.alibaba.fastjson.JSONObject;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.PrintStream;
+import java.io.OutputStream;
 import java.net.Socket;
 import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Scanner;
 
 /**
@@ -20,18 +24,33 @@ import java.util.Scanner;
 
 public class Client {
     private static Socket clientSocket;
-    private static InputStream in;
-    private static PrintStream out;
+    private static DataInputStream in;
+    private static OutputStream out;
 
-    public static void main(String args[]) {
+    /** buffer - receives the responses, reused by every call and grown for larger responses */
+    private static byte[] buffer = new byte[8 * 1024];
+
+    /** codec - "json" (default) or "binary", read from "blockchain.codec" */
+    private static final MessageCodec codec = MessageCodec.forName(System.getProperty("blockchain.codec"));
+
+    /** FULL_SCAN - verify every block instead of only the changed ones, read from "blockchain.verify.full" */
+    private static final boolean FULL_SCAN = Boolean.getBoolean("blockchain.verify.full");
+
+    public static void main(String args[]) throws Exception {
+        // "load" runs the load generator instead of the menu
+        if (args.length > 0 && args[0].equals("load")) {
+            LoadGenerator.main(args);
+            return;
+        }
         // args give message contents and server hostname
         System.out.println("The client is running.");
         Scanner scanner = new Scanner(System.in);
 
         try {
             clientSocket = new Socket("localhost", 6789);
-            in = clientSocket.getInputStream();
-            out = new PrintStream(clientSocket.getOutputStream());
+            clientSocket.setTcpNoDelay(true);
+            in = new DataInputStream(new BufferedInputStream(clientSocket.getInputStream()));
+            out = new BufferedOutputStream(clientSocket.getOutputStream());
         } catch (IOException e) {
             e.printStackTrace();
             System.exit(1);
@@ -44,23 +63,54 @@ public class Client {
                     + "3. View the blockchain.\n"
                     + "4. Corrupt the chain.\n"
                     + "5. Hide the corruption by repairing the chain. \n"
-                    + "6. Exit.");
+                    + "6. Exit.\n"
+                    + "7. View a range of blocks.\n"
+                    + "8. Stream the blockchain.\n"
+                    + "9. View server metrics.\n"
+                    + "10. Prove a transaction is in a block.\n"
+                    + "11. Submit a transaction to the mempool.\n"
+                    + "12. Check a submitted transaction.\n"
+                    + "13. Mine a block in the background.\n"
+                    + "14. Check a mining job.\n"
+                    + "15. Cancel a mining job.\n"
+                    + "16. View the transfers of an account.\n"
+                    + "17. View the balance of an account.\n"
+                    + "18. Find a block by its hash.\n"
+                    + "19. Find a transaction by its ID.");
             int select = scanner.nextInt();
             scanner.nextLine();
             RequestMessage req = null;
+            String proven = null;
             switch (select) {
                 case 0:
                     req = new RequestMessage(0);
                     break;
                 case 1:
+                case 13:
                     System.out.println("Enter difficulty > 0");
                     int difficulty = Integer.parseInt(scanner.nextLine());
                     System.out.println("Enter transaction");
                     String data = scanner.nextLine();
-                    req = new RequestMessage(1, difficulty, data, 0);
+                    // more transactions are mined together as one batch block
+                    List<String> transactions = new ArrayList<>();
+                    transactions.add(data);
+                    System.out.println("Enter another transaction, or an empty line to finish");
+                    String more;
+                    while (!(more = scanner.nextLine()).isEmpty()) {
+                        transactions.add(more);
+                    }
+                    req = new RequestMessage(select, difficulty, data, 0);
+                    if (transactions.size() > 1) {
+                        req.setTransactions(transactions);
+                    }
+                    if (select == 13) {
+                        System.out.println("Enter milliseconds the mining may take, 0 for the server's limit");
+                        req.setCount(Integer.parseInt(scanner.nextLine()));
+                    }
                     break;
                 case 2:
                     req = new RequestMessage(2);
+                    req.setFullScan(FULL_SCAN);
                     break;
                 case 3:
                     req = new RequestMessage(3);
@@ -76,19 +126,108 @@ public class Client {
                 case 5:
                     req = new RequestMessage(5);
                     break;
+                case 9:
+                    req = new RequestMessage(9);
+                    break;
+                case 10:
+                    System.out.println("Enter block ID");
+                    int block = Integer.parseInt(scanner.nextLine());
+                    System.out.println("Enter transaction");
+                    proven = scanner.nextLine();
+                    req = new RequestMessage(10, 0, proven, block);
+                    break;
+                case 11:
+                    System.out.println("Enter transaction");
+                    req = new RequestMessage(11, 0, scanner.nextLine(), 0);
+                    break;
+                case 12:
+                    System.out.println("Enter transaction ID");
+                    String id = scanner.nextLine();
+                    System.out.println("Enter milliseconds to wait for the confirmation, 0 to not wait");
+                    req = new RequestMessage(12, 0, id, 0);
+                    req.setCount(Integer.parseInt(scanner.nextLine()));
+                    break;
+                case 14:
+                case 15:
+                    System.out.println("Enter mining job ID");
+                    req = new RequestMessage(select, 0, scanner.nextLine(), 0);
+                    break;
+                case 16:
+                case 17:
+                    System.out.println("Enter account");
+                    String account = scanner.nextLine();
+                    req = new RequestMessage(select, 0, account, 0);
+                    if (select == 16) {
+                        System.out.println("Enter index of first block with transfers of " + account);
+                        req.setIndex(Integer.parseInt(scanner.nextLine()));
+                        System.out.println("Enter number of blocks");
+                        req.setCount(Integer.parseInt(scanner.nextLine()));
+                    }
+                    break;
+                case 18:
+                    System.out.println("Enter block hash");
+                    req = new RequestMessage(18, 0, scanner.nextLine(), 0);
+                    break;
+                case 19:
+                    System.out.println("Enter transaction ID");
+                    req = new RequestMessage(19, 0, scanner.nextLine(), 0);
+                    break;
                 case 6:
                     req = new RequestMessage(6);
                     break;
+                case 7:
+                case 8:
+                    System.out.println("Enter index of first block");
+                    int start = Integer.parseInt(scanner.nextLine());
+                    System.out.println(select == 7 ? "Enter number of blocks" : "Enter number of blocks, 0 for all");
+                    int count = Integer.parseInt(scanner.nextLine());
+                    req = new RequestMessage(select, 0, null, start);
+                    req.setCount(count);
+                    break;
                 default:
                     System.out.println("Invalid Option");
                     break;
             }
             if (req != null) {
                 ResponseMessage res = sendAndReceive(req);
-                if (select != 6) {
+                if (select == 8) {
+                    // print the pages of the stream as they arrive
+                    System.out.println("Got server response");
+                    while (res != null && res.isSuccess()) {
+                        if (res.getBlocks() != null) {
+                            for (Block block : res.getBlocks()) {
+                                System.out.println(block);
+                            }
+                        } else {
+                            // JSON pages arrive already rendered
+                            System.out.println(res.getData());
+                        }
+                        if (!res.isMore()) {
+                            break;
+                        }
+                        res = receive();
+                    }
+                    if (res != null && !res.isSuccess()) {
+                        System.out.println(res.getErrMsg());
+                    }
+                } else if (select != 6) {
                     System.out.println("Got server response");
-                    if (res.isSuccess()) {
-                        System.out.println(res.getData());
+                    if (res.isSuccess() && res.getBlocks() != null) {
+                        System.out.println(BlockChain.toJSONString(res.getBlocks(), res.getChainHash()));
+                        if (res.isMore()) {
+                            System.out.println("More blocks follow this range");
+                        }
+                    } else if (res.isSuccess()) {
+                        System.out.println(select == 11 ? "Transaction ID: " + res.getData()
+                                : select == 13 ? "Mining job ID: " + res.getData() : res.getData());
+                        if (select == 16 && res.isMore()) {
+                            System.out.println("More transfers follow these blocks");
+                        }
+                        if (select == 10) {
+                            // check the proof here instead of trusting the server
+                            System.out.println(MerkleTree.verify(proven, res.getProof(), res.getMerkleRoot())
+                                    ? "Proof verified" : "Proof does not match the Merkle root");
+                        }
                     } else {
                         System.out.println(res.getErrMsg());
                     }
@@ -111,29 +250,33 @@ public class Client {
         }
 
         try {
-            out.write(JSONObject.toJSONBytes(requestMessage));
+            FrameCodec.writeFrame(out, codec.encodeRequest(requestMessage));
             out.flush();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+        return receive();
+    }
 
-            byte[] data = new byte[1024 * 1024 * 64];
-            byte[] buffer = new byte[1024];
-            int total = 0;
-            int len = in.read(buffer);
-            if (len > 0) {
-                System.arraycopy(buffer, 0, data, total, len);
-                total += len;
+    /**
+     * Receive the next response, used on its own to read the rest of a stream
+     * @return the response, or null if the connection failed
+     */
+    private static ResponseMessage receive() {
+        try {
+            int length = FrameCodec.readLength(in, FrameCodec.MAX_RESPONSE);
+            if (length < 0) {
+                throw new EOFException("Connection closed by server");
             }
-            while (in.available() > 0) {
-                len = in.read(buffer);
-                if (len > 0) {
-                    System.arraycopy(buffer, 0, data, total, len);
-                    total += len;
-                }
+            if (length > buffer.length) {
+                buffer = new byte[Math.max(length, buffer.length * 2)];
             }
+            in.readFully(buffer, 0, length);
 
-            byte[] correct = new byte[total];
-            System.arraycopy(data, 0, correct, 0, total);
-
-            return JSONObject.parseObject(new String(correct), ResponseMessage.class);
+            // decode straight from the buffer without copying it,
+            // a server that is too busy to read the request answers in JSON whatever codec the client uses
+            return MessageCodec.detect(buffer, 0, length).decodeResponse(buffer, 0, length);
         } catch (SocketException e) {
             if (!e.getMessage().equals("Connection reset")) {
                 e.printStackTrace();
@@ -0,0 +1,125 @@
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * name: Enliang Wu
+ * email: enliangw@andrew.cmu.edu
+ *
+ * This class implements the wire framing shared by the client and the servers.
+ * Every message is sent as a frame: a 4 byte big-endian payload length followed by the payload.
+ * The receiver therefore always knows where a message ends, no matter how the bytes arrive,
+ * and several requests may be written back to back on one connection.
+ * Requests larger than "blockchain.frame.max" bytes (default 8 MB) are rejected by the servers.
+ * Responses may be larger, a view of the whole chain grows with it, so clients accept up to
+ * "blockchain.frame.response.max" bytes (default 256 MB).
+ * A payload is read into a buffer that grows as its bytes arrive, so a header alone
+ * can not make the receiver allocate a large frame.
+ */
+public final class FrameCodec {
+    static final int HEADER_LENGTH = 4;
+    static final int MAX_FRAME = Integer.getInteger("blockchain.frame.max", 8 * 1024 * 1024);
+    static final int MAX_RESPONSE = Integer.getInteger("blockchain.frame.response.max", 256 * 1024 * 1024);
+
+    // payloads are first read into a buffer of at most this size, which doubles while more bytes arrive
+    private static final int CHUNK = 64 * 1024;
+
+    private FrameCodec() {
+    }
+
+    /**
+     * Write one frame, the caller flushes the stream
+     * @param out - stream to write to
+     * @param payload - message bytes
+     * @throws IOException if the stream fails
+     */
+    public static void writeFrame(OutputStream out, byte[] payload) throws IOException {
+        int length = payload.length;
+        out.write(length >>> 24);
+        out.write(length >>> 16);
+        out.write(length >>> 8);
+        out.write(length);
+        out.write(payload);
+    }
+
+    /**
+     * Read one request frame
+     * @param in - stream to read from
+     * @return the payload, or null if the stream ended before a new frame
+     * @throws IOException if the stream fails, ends inside a frame or the frame is too large
+     */
+    public static byte[] readFrame(DataInputStream in) throws IOException {
+        return readFrame(in, MAX_FRAME);
+    }
+
+    /**
+     * Read one frame
+     * @param in - stream to read from
+     * @param max - largest payload accepted, MAX_FRAME for requests and MAX_RESPONSE for responses
+     * @return the payload, or null if the stream ended before a new frame
+     * @throws IOException if the stream fails, ends inside a frame or the frame is too large
+     */
+    public static byte[] readFrame(DataInputStream in, int max) throws IOException {
+        int length = readLength(in, max);
+        if (length < 0) {
+            return null;
+        }
+        byte[] payload = new byte[Math.min(length, CHUNK)];
+        in.readFully(payload);
+        while (payload.length < length) {
+            int read = payload.length;
+            payload = Arrays.copyOf(payload, (int) Math.min(length, 2L * read));
+            in.readFully(payload, read, payload.length - read);
+        }
+        return payload;
+    }
+
+    /**
+     * Read the header of the next request frame, the caller reads the payload itself
+     * @param in - stream to read from
+     * @return the payload length, or -1 if the stream ended before a new frame
+     * @throws IOException if the stream fails or the frame is too large
+     */
+    public static int readLength(DataInputStream in) throws IOException {
+        return readLength(in, MAX_FRAME);
+    }
+
+    /**
+     * Read the header of the next frame, the caller reads the payload itself
+     * @param in - stream to read from
+     * @param max - largest payload accepted
+     * @return the payload length, or -1 if the stream ended before a new frame
+     * @throws IOException if the stream fails or the frame is too large
+     */
+    public static int readLength(DataInputStream in, int max) throws IOException {
+        try {
+            return checkLength(in.readInt(), max);
+        } catch (EOFException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @param payload - message bytes
+     * @return a buffer holding the whole frame, ready to be written to a channel
+     */
+    public static ByteBuffer encode(byte[] payload) {
+        ByteBuffer frame = ByteBuffer.allocate(HEADER_LENGTH + payload.length);
+        frame.putInt(payload.length).put(payload).flip();
+        return frame;
+    }
+
+    static int checkLength(int length) throws IOException {
+        return checkLength(length, MAX_FRAME);
+    }
+
+    static int checkLength(int length, int max) throws IOException {
+        if (length < 0 || length > max) {
+            throw new IOException("Invalid frame length " + length);
+        }
+        return length;
+    }
+}
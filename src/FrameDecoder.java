@@ -0,0 +1,73 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * name: Enliang Wu
+ * email: enliangw@andrew.cmu.edu
+ *
+ * This class decodes frames (see FrameCodec) from bytes arriving on a non-blocking channel.
+ * Bytes are read into a direct buffer which doubles whenever it is full, up to the size of the frame at its head,
+ * so it only grows with bytes that have actually arrived and never beyond a frame FrameCodec accepts.
+ * A full buffer that already holds a complete frame does not grow: no more bytes are read until it is taken out.
+ * Every complete frame in the buffer can be taken out in turn, so pipelined requests are supported.
+ * The buffer is kept in write mode between calls.
+ */
+public class FrameDecoder {
+    private ByteBuffer buffer;
+
+    public FrameDecoder(int initialCapacity) {
+        buffer = ByteBuffer.allocateDirect(initialCapacity);
+    }
+
+    /**
+     * @return the buffer to read channel bytes into, with room for at least one byte,
+     * or null if it is full and holds a complete frame, which must be taken out with next() first
+     * @throws IOException if the frame at the head of the buffer has an invalid length
+     */
+    public ByteBuffer buffer() throws IOException {
+        if (!buffer.hasRemaining()) {
+            long capacity = 2L * buffer.capacity();
+            if (buffer.position() >= FrameCodec.HEADER_LENGTH) {
+                long frame = FrameCodec.HEADER_LENGTH + (long) FrameCodec.checkLength(buffer.getInt(0));
+                if (frame <= buffer.position()) {
+                    return null;
+                }
+                // the head frame is incomplete, so it is longer than the bytes already buffered
+                capacity = Math.min(capacity, frame);
+            }
+            grow((int) capacity);
+        }
+        return buffer;
+    }
+
+    /**
+     * Take the next complete frame out of the buffer
+     * @return the payload, or null if no complete frame has arrived yet
+     * @throws IOException if the frame length is invalid
+     */
+    public byte[] next() throws IOException {
+        buffer.flip();
+        try {
+            if (buffer.remaining() < FrameCodec.HEADER_LENGTH) {
+                return null;
+            }
+            int length = FrameCodec.checkLength(buffer.getInt(buffer.position()));
+            if (buffer.remaining() < FrameCodec.HEADER_LENGTH + length) {
+                return null;
+            }
+            buffer.position(buffer.position() + FrameCodec.HEADER_LENGTH);
+            byte[] payload = new byte[length];
+            buffer.get(payload);
+            return payload;
+        } finally {
+            buffer.compact();
+        }
+    }
+
+    private void grow(int capacity) {
+        ByteBuffer bigger = ByteBuffer.allocateDirect(capacity);
+        buffer.flip();
+        bigger.put(buffer);
+        buffer = bigger;
+    }
+}
@@ -0,0 +1,79 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * name: Enliang Wu
+ * email: enliangw@andrew.cmu.edu
+ *
+ * This class measures the hash rate of a mining worker over a sliding window.
+ * Workers record how many hashes they computed and how long they were busy doing it;
+ * the records are kept in one bucket per second for the last "blockchain.hashrate.window" seconds (default 10).
+ * The rate is hashes per busy second, so it tells how fast the worker hashes while it mines,
+ * not how much mining happened to be requested. When nothing was mined within the window,
+ * the average since start up is reported instead.
+ * Updates are lock-free; a bucket that is reused for a new second may lose a concurrent record,
+ * which is fine for telemetry.
+ */
+public class HashRate {
+    private static final int WINDOW = Math.max(1, Integer.getInteger("blockchain.hashrate.window", 10));
+
+    private final AtomicLongArray seconds = new AtomicLongArray(WINDOW);
+    private final AtomicLongArray hashes = new AtomicLongArray(WINDOW);
+    private final AtomicLongArray busyNanos = new AtomicLongArray(WINDOW);
+    private final AtomicLong totalHashes = new AtomicLong();
+    private final AtomicLong totalBusyNanos = new AtomicLong();
+
+    /**
+     * Record a run of hashes
+     * @param count - number of hashes computed
+     * @param nanos - time spent computing them
+     */
+    public void record(long count, long nanos) {
+        long second = System.currentTimeMillis() / 1000;
+        int bucket = (int) (second % WINDOW);
+        long stamp = seconds.get(bucket);
+        if (stamp != second && seconds.compareAndSet(bucket, stamp, second)) {
+            // the bucket held an older second, start it over
+            hashes.set(bucket, 0);
+            busyNanos.set(bucket, 0);
+        }
+        hashes.addAndGet(bucket, count);
+        busyNanos.addAndGet(bucket, nanos);
+        totalHashes.addAndGet(count);
+        totalBusyNanos.addAndGet(nanos);
+    }
+
+    /**
+     * @return hashes per busy second over the window, 0 if nothing has been mined yet
+     */
+    public long getHashesPerSecond() {
+        long now = System.currentTimeMillis() / 1000;
+        long count = 0;
+        long nanos = 0;
+        for (int i = 0; i < WINDOW; i++) {
+            if (now - seconds.get(i) < WINDOW) {
+                count += hashes.get(i);
+                nanos += busyNanos.get(i);
+            }
+        }
+        if (nanos == 0) {
+            count = totalHashes.get();
+            nanos = totalBusyNanos.get();
+        }
+        return nanos == 0 ? 0 : (long) (count * 1e9 / nanos);
+    }
+
+    /**
+     * @return hashes computed since start up
+     */
+    public long getTotalHashes() {
+        return totalHashes.get();
+    }
+
+    /**
+     * @return nanoseconds spent hashing since start up
+     */
+    public long getTotalBusyNanos() {
+        return totalBusyNanos.get();
+    }
+}
@@ -0,0 +1,127 @@
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.function.IntFunction;
+
+/**
+ * name: Enliang Wu
+ * email: enliangw@andrew.cmu.edu
+ *
+ * This class is an open addressing hash table from 64-bit keys to int values, kept in a buffer
+ * handed out by an allocator, so a chain backed by a BlockStore keeps it in a memory-mapped scratch file
+ * instead of on the heap. A key may map to several values.
+ * The keys are prefixes of SHA-256 hashes, so they are spread evenly and two different hashes rarely share one;
+ * callers check what they find against the block it points at.
+ * A slot is the key and the value, 12 bytes. Key 0 marks a free slot and a removed pair keeps its key
+ * with the value REMOVED, so probing goes on past it. The table doubles when half of its slots are used.
+ * It is not thread safe, BlockChain guards it with its lock.
+ */
+final class IndexTable {
+    private static final int SLOT = 12;
+    private static final int REMOVED = -1;
+    private static final int MIN_SLOTS = 1024;
+
+    private final IntFunction<ByteBuffer> allocator;
+    private ByteBuffer slots;
+    private int mask;
+    /** used - slots holding a pair, removed or not */
+    private int used;
+    private int live;
+
+    /**
+     * @param allocator - hands out zeroed buffers of the given number of bytes
+     */
+    IndexTable(IntFunction<ByteBuffer> allocator) {
+        this.allocator = allocator;
+        allocate(MIN_SLOTS);
+    }
+
+    /**
+     * @param hash - a SHA-256 hash, at least 8 bytes
+     * @return the key of the hash, its first 8 bytes, never 0
+     */
+    static long key(byte[] hash) {
+        long key = ByteBuffer.wrap(hash).getLong();
+        // 0 marks a free slot, the one hash in 2^64 starting with it shares a key with 1
+        return key == 0 ? 1 : key;
+    }
+
+    /**
+     * Add a pair, a pair that is already there is added again
+     */
+    void put(long key, int value) {
+        if ((used + 1) * 2L > mask + 1L) {
+            resize(Math.max(MIN_SLOTS, Integer.highestOneBit(Math.max(1, live)) * 4));
+        }
+        int slot = (int) key & mask;
+        while (slots.getLong(slot * SLOT) != 0) {
+            slot = (slot + 1) & mask;
+        }
+        slots.putLong(slot * SLOT, key);
+        slots.putInt(slot * SLOT + 8, value);
+        used++;
+        live++;
+    }
+
+    /**
+     * Remove one pair
+     * @return false if the pair was not in the table
+     */
+    boolean remove(long key, int value) {
+        for (int slot = (int) key & mask; slots.getLong(slot * SLOT) != 0; slot = (slot + 1) & mask) {
+            if (slots.getLong(slot * SLOT) == key && slots.getInt(slot * SLOT + 8) == value) {
+                slots.putInt(slot * SLOT + 8, REMOVED);
+                live--;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the values of a key in no particular order, empty if it has none
+     */
+    int[] get(long key) {
+        int[] values = new int[0];
+        for (int slot = (int) key & mask; slots.getLong(slot * SLOT) != 0; slot = (slot + 1) & mask) {
+            int value = slots.getInt(slot * SLOT + 8);
+            if (slots.getLong(slot * SLOT) == key && value != REMOVED) {
+                values = Arrays.copyOf(values, values.length + 1);
+                values[values.length - 1] = value;
+            }
+        }
+        return values;
+    }
+
+    /**
+     * @return the number of pairs in the table
+     */
+    int size() {
+        return live;
+    }
+
+    /**
+     * Move the pairs into a new buffer of a number of slots, dropping the removed pairs
+     */
+    private void resize(int capacity) {
+        ByteBuffer old = slots;
+        int oldSlots = mask + 1;
+        allocate(capacity);
+        for (int slot = 0; slot < oldSlots; slot++) {
+            long key = old.getLong(slot * SLOT);
+            int value = old.getInt(slot * SLOT + 8);
+            if (key != 0 && value != REMOVED) {
+                put(key, value);
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+        if (capacity > Integer.MAX_VALUE / SLOT) {
+            throw new IllegalStateException("Index table can not hold more than " + Integer.MAX_VALUE / SLOT / 2 + " keys");
+        }
+        slots = allocator.apply(capacity * SLOT);
+        mask = capacity - 1;
+        used = 0;
+        live = 0;
+    }
+}
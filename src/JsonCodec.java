@@ -0,0 +1,57 @@
+import com.alibaba.fastjson.JSONException;
+import com.alibaba.fastjson.JSONObject;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * name: Enliang Wu
+ * email: enliangw@andrew.cmu.edu
+ *
+ * This class is the default codec, messages are JSON documents written by fastjson.
+ * Blocks in a response are rendered as the chain view document in the data field,
+ * which is what JSON clients have always received.
+ */
+public class JsonCodec implements MessageCodec {
+    private static final ThreadLocal<CharsetDecoder> decoders =
+            ThreadLocal.withInitial(StandardCharsets.UTF_8::newDecoder);
+
+    @Override
+    public byte[] encodeRequest(RequestMessage message) {
+        return JSONObject.toJSONBytes(message);
+    }
+
+    @Override
+    public RequestMessage decodeRequest(byte[] bytes, int offset, int length) {
+        return parse(bytes, offset, length, RequestMessage.class);
+    }
+
+    @Override
+    public byte[] encodeResponse(ResponseMessage message) {
+        if (message.getBlocks() != null) {
+            boolean more = message.isMore();
+            message = new ResponseMessage(message.isSuccess(),
+                    BlockChain.toJSONString(message.getBlocks(), message.getChainHash()),
+                    message.getExecutionTime(), message.getErrMsg());
+            message.setMore(more);
+        }
+        return JSONObject.toJSONBytes(message);
+    }
+
+    @Override
+    public ResponseMessage decodeResponse(byte[] bytes, int offset, int length) {
+        return parse(bytes, offset, length, ResponseMessage.class);
+    }
+
+    private static <T> T parse(byte[] bytes, int offset, int length, Class<T> clazz) {
+        T message;
+        try {
+            message = JSONObject.parseObject(bytes, offset, length, decoders.get(), clazz);
+        } catch (JSONException e) {
+            throw new IllegalArgumentException(e.getMessage(), e);
+        }
+        if (message == null) {
+            throw new IllegalArgumentException("empty message");
+        }
+        return message;
+    }
+}
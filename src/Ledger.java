@@ -0,0 +1,442 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.IntFunction;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * name: Enliang Wu
+ * email: enliangw@andrew.cmu.edu
+ *
+ * This class indexes the dscoin transfers on the chain by account.
+ * A transaction of the form "X pays Y N dscoin" is a transfer, anything after it is ignored
+ * and transactions of any other form are not indexed.
+ * For every account it keeps the positions of the blocks with its transfers in ascending order (its posting list)
+ * and its running balance, received minus paid, so a balance costs one lookup and a history page
+ * reads only the blocks on the page. It is kept up to date by BlockChain, which guards it with its lock.
+ *
+ * Nothing of it is on the heap: accounts are found by the SHA-256 of their name through an IndexTable,
+ * and the account records and posting lists are kept in buffers handed out by an allocator,
+ * memory-mapped scratch files for a chain backed by a BlockStore.
+ * A posting list is a linked list of chunks of up to CHUNK positions, none of them empty.
+ */
+public class Ledger {
+    private static final Pattern TRANSFER = Pattern.compile("^\\s*(\\S+) pays (\\S+) (\\d{1,18}) dscoin\\b");
+
+    /** CHUNK - block positions per chunk of a posting list */
+    private static final int CHUNK = 30;
+    // a chunk is its number of positions, the number of the next chunk (0 ends the list) and the positions
+    private static final int CHUNK_BYTES = (CHUNK + 2) * 4;
+    // an account is the second 8 bytes of the SHA-256 of its name (the first are its key in names),
+    // its balance, its number of blocks, and the numbers of the first and last chunks of its posting list
+    private static final int ACCOUNT_BYTES = 32;
+    private static final int BALANCE = 8;
+    private static final int BLOCKS = 16;
+    private static final int FIRST = 20;
+    private static final int LAST = 24;
+
+    private final IntFunction<ByteBuffer> allocator;
+    /** names - account numbers by the first 8 bytes of the SHA-256 of the account's name */
+    private final IndexTable names;
+    private ByteBuffer accounts;
+    private int accountCount;
+    /** chunks - the chunks of all posting lists, chunk 0 is never used */
+    private ByteBuffer chunks;
+    private int chunkCount = 1;
+    /** free - first chunk of the list of chunks no posting list uses, 0 if there is none */
+    private int free;
+
+    /**
+     * @param allocator - hands out zeroed buffers of the given number of bytes
+     */
+    Ledger(IntFunction<ByteBuffer> allocator) {
+        this.allocator = allocator;
+        names = new IndexTable(allocator);
+        accounts = allocator.apply(64 * ACCOUNT_BYTES);
+        chunks = allocator.apply(64 * CHUNK_BYTES);
+    }
+
+    /**
+     * One transfer of dscoin between two accounts
+     */
+    static final class Transfer {
+        private final String from;
+        private final String to;
+        private final long amount;
+
+        private Transfer(String from, String to, long amount) {
+            this.from = from;
+            this.to = to;
+            this.amount = amount;
+        }
+
+        /**
+         * @param transaction - a transaction
+         * @return the transfer, or null if the transaction is not a transfer
+         */
+        static Transfer parse(String transaction) {
+            if (transaction == null) {
+                return null;
+            }
+            Matcher matcher = TRANSFER.matcher(transaction);
+            return matcher.find()
+                    ? new Transfer(matcher.group(1), matcher.group(2), Long.parseLong(matcher.group(3))) : null;
+        }
+
+        boolean involves(String account) {
+            return from.equals(account) || to.equals(account);
+        }
+    }
+
+    /**
+     * @param block - a block
+     * @return the transfers among the block's transactions
+     */
+    static List<Transfer> transfers(Block block) {
+        List<String> transactions = block.getTransactions();
+        if (transactions == null) {
+            Transfer transfer = Transfer.parse(block.getData());
+            return transfer == null ? Collections.emptyList() : Collections.singletonList(transfer);
+        }
+        List<Transfer> transfers = new ArrayList<>();
+        for (String transaction : transactions) {
+            Transfer transfer = Transfer.parse(transaction);
+            if (transfer != null) {
+                transfers.add(transfer);
+            }
+        }
+        return transfers;
+    }
+
+    /**
+     * Book the transfers of the block at a position
+     * @param index - position of the block
+     * @param transfers - the block's transfers
+     */
+    void add(int index, List<Transfer> transfers) {
+        for (Transfer transfer : transfers) {
+            int from = account(transfer.from, true);
+            int to = account(transfer.to, true);
+            addBalance(from, -transfer.amount);
+            addBalance(to, transfer.amount);
+            post(from, index);
+            post(to, index);
+        }
+    }
+
+    /**
+     * Take back the transfers of the block at a position, when its transactions are replaced
+     * @param index - position of the block
+     * @param transfers - the transfers added for the block before
+     */
+    void remove(int index, List<Transfer> transfers) {
+        Set<String> involved = new LinkedHashSet<>();
+        for (Transfer transfer : transfers) {
+            addBalance(account(transfer.from, false), transfer.amount);
+            addBalance(account(transfer.to, false), -transfer.amount);
+            involved.add(transfer.from);
+            involved.add(transfer.to);
+        }
+        for (String name : involved) {
+            unpost(account(name, false), index);
+        }
+    }
+
+    /**
+     * @param account - name of the account
+     * @param start - position in the account's posting list of the first block to show
+     * @param count - the most blocks to show
+     * @param blocks - the blocks of the chain by position
+     * @return the balance and a page of the transfers of the account, or null if it has no transfers
+     */
+    Statement statement(String account, int start, int count, IntFunction<Block> blocks) {
+        int number = account(account, false);
+        if (number < 0 || accounts.getInt(number * ACCOUNT_BYTES + BLOCKS) == 0) {
+            return null;
+        }
+        int total = accounts.getInt(number * ACCOUNT_BYTES + BLOCKS);
+        int from = Math.max(0, Math.min(start, total));
+        int to = (int) Math.min(total, (long) from + Math.max(0, count));
+        List<String> transfers = new ArrayList<>();
+        for (int index : postings(number, from, to - from)) {
+            Block block = blocks.apply(index);
+            List<String> transactions = block.getTransactions();
+            for (String transaction : transactions == null ? Collections.singletonList(block.getData()) : transactions) {
+                Transfer transfer = Transfer.parse(transaction);
+                if (transfer != null && transfer.involves(account)) {
+                    transfers.add("Block " + index + ": " + transaction);
+                }
+            }
+        }
+        return new Statement(accounts.getLong(number * ACCOUNT_BYTES + BALANCE), total, to < total, transfers);
+    }
+
+    /**
+     * @param name - name of an account
+     * @param create - add the account if it is not known yet
+     * @return the number of the account, or -1 if it is not known and not created
+     */
+    private int account(String name, boolean create) {
+        byte[] hash = BlockHasher.get().digest(name.getBytes(StandardCharsets.UTF_8));
+        long key = IndexTable.key(hash);
+        long check = ByteBuffer.wrap(hash).getLong(8);
+        for (int number : names.get(key)) {
+            if (accounts.getLong(number * ACCOUNT_BYTES) == check) {
+                return number;
+            }
+        }
+        if (!create) {
+            return -1;
+        }
+        if ((accountCount + 1) * (long) ACCOUNT_BYTES > accounts.capacity()) {
+            accounts = grow(accounts);
+        }
+        int number = accountCount++;
+        accounts.putLong(number * ACCOUNT_BYTES, check);
+        names.put(key, number);
+        return number;
+    }
+
+    private void addBalance(int account, long amount) {
+        int at = account * ACCOUNT_BYTES + BALANCE;
+        accounts.putLong(at, accounts.getLong(at) + amount);
+    }
+
+    /**
+     * Insert a block position into the posting list of an account,
+     * the common case of a new block at the end is an append to the last chunk
+     */
+    private void post(int account, int index) {
+        int base = account * ACCOUNT_BYTES;
+        int last = accounts.getInt(base + LAST);
+        if (last == 0) {
+            int chunk = newChunk();
+            accounts.putInt(base + FIRST, chunk);
+            accounts.putInt(base + LAST, chunk);
+            insert(chunk, 0, index);
+        } else if (position(last, size(last) - 1) < index) {
+            if (size(last) == CHUNK) {
+                int chunk = newChunk();
+                setNext(last, chunk);
+                accounts.putInt(base + LAST, chunk);
+                last = chunk;
+            }
+            insert(last, size(last), index);
+        } else {
+            // the first chunk ending at or after the position holds it or is where it goes
+            int chunk = accounts.getInt(base + FIRST);
+            while (position(chunk, size(chunk) - 1) < index) {
+                chunk = next(chunk);
+            }
+            int at = search(chunk, index);
+            if (at >= 0) {
+                return;
+            }
+            at = -at - 1;
+            if (size(chunk) == CHUNK) {
+                // split a full chunk, the upper half moves to a new chunk after it
+                int upper = newChunk();
+                for (int i = CHUNK / 2; i < CHUNK; i++) {
+                    insert(upper, i - CHUNK / 2, position(chunk, i));
+                }
+                setSize(chunk, CHUNK / 2);
+                setNext(upper, next(chunk));
+                setNext(chunk, upper);
+                if (last == chunk) {
+                    accounts.putInt(base + LAST, upper);
+                }
+                if (at > CHUNK / 2) {
+                    chunk = upper;
+                    at -= CHUNK / 2;
+                }
+            }
+            insert(chunk, at, index);
+        }
+        accounts.putInt(base + BLOCKS, accounts.getInt(base + BLOCKS) + 1);
+    }
+
+    /**
+     * Remove a block position from the posting list of an account, an emptied chunk is unlinked and freed
+     */
+    private void unpost(int account, int index) {
+        int base = account * ACCOUNT_BYTES;
+        int previous = 0;
+        int chunk = accounts.getInt(base + FIRST);
+        while (chunk != 0 && position(chunk, size(chunk) - 1) < index) {
+            previous = chunk;
+            chunk = next(chunk);
+        }
+        int at = chunk == 0 ? -1 : search(chunk, index);
+        if (at < 0) {
+            return;
+        }
+        int size = size(chunk);
+        int offset = chunk * CHUNK_BYTES + 8;
+        for (int i = at; i < size - 1; i++) {
+            chunks.putInt(offset + i * 4, chunks.getInt(offset + (i + 1) * 4));
+        }
+        setSize(chunk, size - 1);
+        accounts.putInt(base + BLOCKS, accounts.getInt(base + BLOCKS) - 1);
+        if (size == 1) {
+            if (previous == 0) {
+                accounts.putInt(base + FIRST, next(chunk));
+            } else {
+                setNext(previous, next(chunk));
+            }
+            if (accounts.getInt(base + LAST) == chunk) {
+                accounts.putInt(base + LAST, previous);
+            }
+            setNext(chunk, free);
+            free = chunk;
+        }
+    }
+
+    /**
+     * @return count positions of the posting list of an account, from the position at start on
+     */
+    private int[] postings(int account, int start, int count) {
+        int[] positions = new int[count];
+        int chunk = accounts.getInt(account * ACCOUNT_BYTES + FIRST);
+        while (chunk != 0 && start >= size(chunk)) {
+            start -= size(chunk);
+            chunk = next(chunk);
+        }
+        for (int n = 0; n < count; chunk = next(chunk), start = 0) {
+            for (int i = start; i < size(chunk) && n < count; i++) {
+                positions[n++] = position(chunk, i);
+            }
+        }
+        return positions;
+    }
+
+    private int newChunk() {
+        int chunk;
+        if (free != 0) {
+            chunk = free;
+            free = next(chunk);
+        } else {
+            if ((chunkCount + 1) * (long) CHUNK_BYTES > chunks.capacity()) {
+                chunks = grow(chunks);
+            }
+            chunk = chunkCount++;
+        }
+        setSize(chunk, 0);
+        setNext(chunk, 0);
+        return chunk;
+    }
+
+    /**
+     * Insert a position at an offset of a chunk that is not full
+     */
+    private void insert(int chunk, int at, int index) {
+        int size = size(chunk);
+        int offset = chunk * CHUNK_BYTES + 8;
+        for (int i = size; i > at; i--) {
+            chunks.putInt(offset + i * 4, chunks.getInt(offset + (i - 1) * 4));
+        }
+        chunks.putInt(offset + at * 4, index);
+        setSize(chunk, size + 1);
+    }
+
+    /**
+     * @return the offset of the position in the chunk, or (-(insertion point) - 1) if it is not there
+     */
+    private int search(int chunk, int index) {
+        int lo = 0;
+        int hi = size(chunk) - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int position = position(chunk, mid);
+            if (position < index) {
+                lo = mid + 1;
+            } else if (position > index) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(lo + 1);
+    }
+
+    private int size(int chunk) {
+        return chunks.getInt(chunk * CHUNK_BYTES);
+    }
+
+    private void setSize(int chunk, int size) {
+        chunks.putInt(chunk * CHUNK_BYTES, size);
+    }
+
+    private int next(int chunk) {
+        return chunks.getInt(chunk * CHUNK_BYTES + 4);
+    }
+
+    private void setNext(int chunk, int next) {
+        chunks.putInt(chunk * CHUNK_BYTES + 4, next);
+    }
+
+    private int position(int chunk, int i) {
+        return chunks.getInt(chunk * CHUNK_BYTES + 8 + i * 4);
+    }
+
+    /**
+     * @return a buffer of twice the size holding the same bytes
+     */
+    private ByteBuffer grow(ByteBuffer buffer) {
+        if (buffer.capacity() > Integer.MAX_VALUE / 2) {
+            throw new IllegalStateException("Ledger is full");
+        }
+        ByteBuffer bigger = allocator.apply(buffer.capacity() * 2);
+        bigger.put(0, buffer, 0, buffer.capacity());
+        return bigger;
+    }
+
+    /**
+     * The balance of an account and a page of its transfers
+     */
+    public static class Statement {
+        private final long balance;
+        private final int blocks;
+        private final boolean more;
+        private final List<String> transfers;
+
+        Statement(long balance, int blocks, boolean more, List<String> transfers) {
+            this.balance = balance;
+            this.blocks = blocks;
+            this.more = more;
+            this.transfers = transfers;
+        }
+
+        /**
+         * @return dscoin received minus dscoin paid
+         */
+        public long getBalance() {
+            return balance;
+        }
+
+        /**
+         * @return number of blocks with transfers of the account
+         */
+        public int getBlocks() {
+            return blocks;
+        }
+
+        /**
+         * @return true if more blocks with transfers follow this page
+         */
+        public boolean isMore() {
+            return more;
+        }
+
+        /**
+         * @return the transfers of the page, each as "Block i: " and the transaction
+         */
+        public List<String> getTransfers() {
+            return transfers;
+        }
+    }
+}
@@ -0,0 +1,266 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * name: Enliang Wu
+ * email: enliangw@andrew.cmu.edu
+ *
+ * This class is the load generator mode of the client, started with "java Client load".
+ * It opens several connections to the server and replays a mix of request types 0 to 5 and 11
+ * on each of them at a target rate, then reports the throughput and the latency percentiles
+ * of every request type. It is configured with system properties:
+ * "blockchain.load.connections" - number of connections, default 8
+ * "blockchain.load.rate" - requests per second of all connections together, 0 (default) sends as fast as possible
+ * "blockchain.load.seconds" - how long to run, default 10
+ * "blockchain.load.mix" - weight of each type, default "0:40,1:10,2:30,3:5,4:10,5:5"
+ * "blockchain.load.difficulty" - difficulty of the added blocks, default 1
+ * "blockchain.codec" - "json" (default) or "binary"
+ * With a target rate, every request has a scheduled send time and its latency is measured from that time,
+ * so a server that falls behind shows up in the latency instead of silently lowering the request rate.
+ */
+public class LoadGenerator {
+    private static final String HOST = "localhost";
+    private static final int PORT = 6789;
+    // types 0 to 11 are counted, only 0 to 5 and 11 can be replayed
+    private static final int TYPES = 12;
+
+    private final int connections = Integer.getInteger("blockchain.load.connections", 8);
+    private final double rate = Double.parseDouble(System.getProperty("blockchain.load.rate", "0"));
+    private final long seconds = Long.getLong("blockchain.load.seconds", 10);
+    private final int difficulty = Integer.getInteger("blockchain.load.difficulty", 1);
+    private final MessageCodec codec = MessageCodec.forName(System.getProperty("blockchain.codec"));
+    private final int[] weights = parseMix(System.getProperty("blockchain.load.mix", "0:40,1:10,2:30,3:5,4:10,5:5"));
+
+    /** chainSize - blocks known to be on the chain, corruptions pick an index below it */
+    private final AtomicInteger chainSize = new AtomicInteger(1);
+
+    public static void main(String[] args) throws Exception {
+        new LoadGenerator().run();
+    }
+
+    /**
+     * Run the load, one thread per connection, and print the report
+     */
+    private void run() throws Exception {
+        System.out.println("Sending " + describeMix() + " on " + connections + " connections for " + seconds + " seconds"
+                + (rate > 0 ? " at " + rate + " requests per second" : " as fast as possible"));
+
+        chainSize.set(readChainSize());
+        List<Worker> workers = new ArrayList<>();
+        long start = System.nanoTime();
+        long end = start + seconds * 1_000_000_000L;
+        for (int i = 0; i < connections; i++) {
+            Worker worker = new Worker(i, start, end);
+            workers.add(worker);
+            worker.start();
+        }
+
+        LatencyHistogram[] histograms = new LatencyHistogram[TYPES];
+        for (int type = 0; type < TYPES; type++) {
+            histograms[type] = new LatencyHistogram();
+        }
+        long errors = 0;
+        for (Worker worker : workers) {
+            worker.join();
+            for (int type = 0; type < TYPES; type++) {
+                histograms[type].add(worker.histograms[type]);
+            }
+            errors += worker.errors;
+            if (worker.failure != null) {
+                System.out.println("Connection " + worker.id + " failed: " + worker.failure);
+            }
+        }
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        report(histograms, errors, elapsed);
+    }
+
+    /**
+     * @return the size of the chain, read from the status of the server
+     */
+    private int readChainSize() throws IOException {
+        try (Socket socket = new Socket(HOST, PORT)) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+            FrameCodec.writeFrame(out, codec.encodeRequest(new RequestMessage(0)));
+            FrameCodec.writeFrame(out, codec.encodeRequest(new RequestMessage(6)));
+            out.flush();
+            byte[] frame = FrameCodec.readFrame(in, FrameCodec.MAX_RESPONSE);
+            String status = codec.decodeResponse(frame, 0, frame.length).getData();
+            String prefix = "Current size of chain: ";
+            int from = status.indexOf(prefix) + prefix.length();
+            return Integer.parseInt(status.substring(from, status.indexOf('\n', from)));
+        }
+    }
+
+    private void report(LatencyHistogram[] histograms, long errors, double elapsed) {
+        LatencyHistogram all = new LatencyHistogram();
+        for (LatencyHistogram histogram : histograms) {
+            all.add(histogram);
+        }
+        System.out.printf(Locale.ROOT, "%d requests in %.1f seconds, %.1f requests per second, %d failed%n",
+                all.getCount(), elapsed, all.getCount() / elapsed, errors);
+        System.out.printf("%-6s %10s %12s %12s %12s %12s %12s%n", "type", "count", "mean", "p50", "p99", "p999", "max");
+        for (int type = 0; type < TYPES; type++) {
+            if (histograms[type].getCount() > 0) {
+                printRow(Integer.toString(type), histograms[type]);
+            }
+        }
+        printRow("all", all);
+    }
+
+    private static void printRow(String name, LatencyHistogram histogram) {
+        System.out.printf(Locale.ROOT, "%-6s %10d %12s %12s %12s %12s %12s%n", name, histogram.getCount(),
+                millis(histogram.getMean()), millis(histogram.getValueAtPercentile(50)),
+                millis(histogram.getValueAtPercentile(99)), millis(histogram.getValueAtPercentile(99.9)),
+                millis(histogram.getMax()));
+    }
+
+    private static String millis(double nanos) {
+        return String.format(Locale.ROOT, "%.3f ms", nanos / 1e6);
+    }
+
+    /**
+     * One connection, sending requests one at a time
+     */
+    private class Worker extends Thread {
+        private final int id;
+        private final long start;
+        private final long end;
+        private final Random random;
+        private final LatencyHistogram[] histograms = new LatencyHistogram[TYPES];
+        private long errors;
+        private long submitted;
+        private Exception failure;
+
+        Worker(int id, long start, long end) {
+            super("load-" + id);
+            this.id = id;
+            this.start = start;
+            this.end = end;
+            this.random = new Random(id);
+            for (int type = 0; type < TYPES; type++) {
+                histograms[type] = new LatencyHistogram();
+            }
+        }
+
+        @Override
+        public void run() {
+            // every connection sends its share of the rate, the connections are spread over one interval
+            long interval = rate > 0 ? (long) (1e9 * connections / rate) : 0;
+            long scheduled = start + interval * id / connections;
+            try (Socket socket = new Socket(HOST, PORT)) {
+                socket.setTcpNoDelay(true);
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+                while (true) {
+                    long now = System.nanoTime();
+                    if (interval > 0) {
+                        if (scheduled > now) {
+                            Thread.sleep((scheduled - now) / 1_000_000, (int) ((scheduled - now) % 1_000_000));
+                        }
+                    } else {
+                        scheduled = now;
+                    }
+                    if (scheduled >= end) {
+                        break;
+                    }
+
+                    int type = pickType();
+                    FrameCodec.writeFrame(out, codec.encodeRequest(request(type)));
+                    out.flush();
+                    byte[] frame = FrameCodec.readFrame(in, FrameCodec.MAX_RESPONSE);
+                    if (frame == null) {
+                        throw new IOException("server closed the connection");
+                    }
+                    histograms[type].record(System.nanoTime() - scheduled);
+                    // a busy server refuses connections in JSON whatever codec is used
+                    ResponseMessage response =
+                            MessageCodec.detect(frame, 0, frame.length).decodeResponse(frame, 0, frame.length);
+                    if (!response.isSuccess()) {
+                        errors++;
+                    } else if (type == 1) {
+                        chainSize.incrementAndGet();
+                    }
+                    scheduled += interval;
+                }
+                FrameCodec.writeFrame(out, codec.encodeRequest(new RequestMessage(6)));
+                out.flush();
+                FrameCodec.readFrame(in, FrameCodec.MAX_RESPONSE);
+            } catch (Exception e) {
+                failure = e;
+            }
+        }
+
+        private int pickType() {
+            int total = 0;
+            for (int weight : weights) {
+                total += weight;
+            }
+            int pick = random.nextInt(total);
+            for (int type = 0; type < TYPES; type++) {
+                pick -= weights[type];
+                if (pick < 0) {
+                    return type;
+                }
+            }
+            return 0;
+        }
+
+        private RequestMessage request(int type) {
+            switch (type) {
+                case 1:
+                    return new RequestMessage(1, difficulty, "Alice pays Bob " + random.nextInt(1000) + " dscoin", 0);
+                case 4:
+                    return new RequestMessage(4, 0, "Mallory pays Mallory " + random.nextInt(1000) + " dscoin",
+                            random.nextInt(chainSize.get()));
+                case 11:
+                    // unique transactions, so the mempool queues every one of them
+                    return new RequestMessage(11, 0, "Alice pays Bob " + random.nextInt(1000) + " dscoin #"
+                            + id + "-" + submitted++, 0);
+                default:
+                    return new RequestMessage(type);
+            }
+        }
+    }
+
+    /**
+     * @param mix - "type:weight" pairs separated by commas
+     * @return the weight of every request type
+     */
+    private static int[] parseMix(String mix) {
+        int[] weights = new int[TYPES];
+        int total = 0;
+        for (String entry : mix.split(",")) {
+            String[] pair = entry.trim().split(":");
+            int type = Integer.parseInt(pair[0].trim());
+            if (type < 0 || type >= TYPES || (type > 5 && type != 11)) {
+                throw new IllegalArgumentException("Request type " + type + " can not be replayed, use 0 to 5 or 11");
+            }
+            weights[type] = Integer.parseInt(pair[1].trim());
+            total += weights[type];
+        }
+        if (total <= 0) {
+            throw new IllegalArgumentException("Invalid mix " + mix);
+        }
+        return weights;
+    }
+
+    private String describeMix() {
+        StringBuilder sb = new StringBuilder("request types");
+        for (int type = 0; type < TYPES; type++) {
+            if (weights[type] > 0) {
+                sb.append(' ').append(type).append(':').append(weights[type]);
+            }
+        }
+        return sb.toString();
+    }
+}
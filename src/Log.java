@@ -0,0 +1,246 @@
+import java.io.BufferedWriter;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * name: Enliang Wu
+ * email: enliangw@andrew.cmu.edu
+ *
+ * This class is the server log. Logging a message only puts it into a lock-free ring buffer;
+ * a background thread formats the messages and writes them to stdout.
+ * Arguments are kept as objects and only turned into text by the writer, with "{}" marking their places,
+ * so a message that is filtered out or dropped costs nothing but the level check.
+ * When the ring is full, messages are dropped instead of blocking the caller, and the number dropped is logged.
+ * It is configured with system properties:
+ * "blockchain.log.level" - ERROR, WARN, INFO (default) or DEBUG
+ * "blockchain.log.buffer" - messages the ring holds, rounded up to a power of two, default 8192
+ * "blockchain.log.sample" - with DEBUG, one in this many request and response payloads is logged, default 100
+ */
+public final class Log {
+
+    public enum Level { ERROR, WARN, INFO, DEBUG }
+
+    private static final Level LEVEL = Level.valueOf(
+            System.getProperty("blockchain.log.level", "INFO").toUpperCase(Locale.ROOT));
+    private static final int SAMPLE = Math.max(1, Integer.getInteger("blockchain.log.sample", 100));
+    private static final int CAPACITY = Integer.highestOneBit(
+            Math.max(2, Integer.getInteger("blockchain.log.buffer", 8192) - 1)) << 1;
+    private static final int MASK = CAPACITY - 1;
+
+    // the writer sleeps this long when the ring is empty
+    private static final long IDLE_NANOS = 10_000_000L;
+
+    private static final DateTimeFormatter TIME =
+            DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS").withZone(ZoneId.systemDefault());
+
+    /*
+     * Slot i is free for the producer claiming ticket t when sequences[i] == t,
+     * and holds the message of ticket t once sequences[i] == t + 1.
+     * The writer frees it for the next round by setting it to t + CAPACITY.
+     */
+    private static final AtomicReferenceArray<Entry> slots = new AtomicReferenceArray<>(CAPACITY);
+    private static final AtomicLongArray sequences = new AtomicLongArray(CAPACITY);
+    private static final AtomicLong tail = new AtomicLong();
+    private static final LongAdder dropped = new LongAdder();
+    private static final AtomicLong sampled = new AtomicLong();
+
+    // head - next ticket to write, only used by the writer
+    private static long head;
+    private static final Thread writer;
+
+    static {
+        for (int i = 0; i < CAPACITY; i++) {
+            sequences.set(i, i);
+        }
+        writer = new Thread(Log::write, "log-writer");
+        writer.setDaemon(true);
+        writer.start();
+        // write what is left when the server exits
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            writer.interrupt();
+            try {
+                writer.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }));
+    }
+
+    /**
+     * One logged message, formatted by the writer
+     */
+    private static final class Entry {
+        private final long time;
+        private final Level level;
+        private final String thread;
+        private final String message;
+        private final Object[] args;
+
+        Entry(Level level, String message, Object[] args) {
+            this.time = System.currentTimeMillis();
+            this.level = level;
+            this.thread = Thread.currentThread().getName();
+            this.message = message;
+            this.args = args;
+        }
+    }
+
+    private Log() {
+    }
+
+    public static boolean isEnabled(Level level) {
+        return level.compareTo(LEVEL) <= 0;
+    }
+
+    public static void error(String message, Object... args) {
+        log(Level.ERROR, message, args);
+    }
+
+    public static void warn(String message, Object... args) {
+        log(Level.WARN, message, args);
+    }
+
+    public static void info(String message, Object... args) {
+        log(Level.INFO, message, args);
+    }
+
+    public static void debug(String message, Object... args) {
+        log(Level.DEBUG, message, args);
+    }
+
+    /**
+     * Log requests and responses at DEBUG level, but only one call in "blockchain.log.sample".
+     * Payloads can be as large as the chain, so they are rendered only when sampled.
+     * @param message - the message, "{}" marks the place of each payload
+     * @param payloads - the requests and responses
+     */
+    public static void payload(String message, Object... payloads) {
+        if (isEnabled(Level.DEBUG) && sampled.getAndIncrement() % SAMPLE == 0) {
+            log(Level.DEBUG, message, payloads);
+        }
+    }
+
+    /**
+     * Put a message into the ring, or drop it if the ring is full.
+     * The last argument may be a Throwable, its stack trace is written after the message.
+     */
+    public static void log(Level level, String message, Object... args) {
+        if (!isEnabled(level)) {
+            return;
+        }
+        Entry entry = new Entry(level, message, args);
+        while (true) {
+            long ticket = tail.get();
+            int slot = (int) (ticket & MASK);
+            long sequence = sequences.get(slot);
+            if (sequence == ticket) {
+                if (tail.compareAndSet(ticket, ticket + 1)) {
+                    slots.set(slot, entry);
+                    sequences.set(slot, ticket + 1);
+                    return;
+                }
+            } else if (sequence < ticket) {
+                // the writer has not freed this slot yet, the ring is full
+                dropped.increment();
+                return;
+            }
+            // another producer claimed the ticket, try the next one
+        }
+    }
+
+    /**
+     * The writer loop: write every message in the ring, flush, and sleep while the ring is empty
+     */
+    private static void write() {
+        // stdout is flushed once the ring is empty, not after every line
+        Writer out = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(FileDescriptor.out), StandardCharsets.UTF_8), 64 * 1024);
+        StringBuilder sb = new StringBuilder();
+        long reported = 0;
+        while (true) {
+            try {
+                Entry entry = poll();
+                if (entry != null) {
+                    format(sb, entry);
+                    out.append(sb);
+                    sb.setLength(0);
+                    continue;
+                }
+                long lost = dropped.sum();
+                if (lost > reported) {
+                    format(sb, new Entry(Level.WARN, "Dropped {} log messages, the log buffer was full",
+                            new Object[]{lost - reported}));
+                    out.append(sb);
+                    sb.setLength(0);
+                    reported = lost;
+                }
+                out.flush();
+            } catch (IOException e) {
+                // stdout is gone, nothing can be logged any more
+                sb.setLength(0);
+            }
+            if (Thread.interrupted()) {
+                return;
+            }
+            LockSupport.parkNanos(IDLE_NANOS);
+        }
+    }
+
+    /**
+     * @return the next message of the ring, or null if it is empty
+     */
+    private static Entry poll() {
+        int slot = (int) (head & MASK);
+        if (sequences.get(slot) != head + 1) {
+            return null;
+        }
+        Entry entry = slots.get(slot);
+        slots.set(slot, null);
+        sequences.set(slot, head + CAPACITY);
+        head++;
+        return entry;
+    }
+
+    private static void format(StringBuilder sb, Entry entry) {
+        TIME.formatTo(Instant.ofEpochMilli(entry.time), sb);
+        sb.append(' ').append(String.format("%-5s", entry.level)).append(" [").append(entry.thread).append("] ");
+        Object[] args = entry.args;
+        int arg = 0;
+        int from = 0;
+        int at;
+        while (arg < args.length && (at = entry.message.indexOf("{}", from)) >= 0) {
+            sb.append(entry.message, from, at).append(render(args[arg++]));
+            from = at + 2;
+        }
+        sb.append(entry.message, from, entry.message.length()).append(System.lineSeparator());
+        if (args.length > arg && args[args.length - 1] instanceof Throwable) {
+            StringWriter trace = new StringWriter();
+            ((Throwable) args[args.length - 1]).printStackTrace(new PrintWriter(trace));
+            sb.append(trace);
+        }
+    }
+
+    private static String render(Object arg) {
+        try {
+            return String.valueOf(arg);
+        } catch (RuntimeException e) {
+            // a payload that can not be rendered must not stop the writer
+            return "<" + e + ">";
+        }
+    }
+}
@@ -0,0 +1,252 @@
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * name: Enliang Wu
+ * email: enliangw@andrew.cmu.edu
+ *
+ * This class is the pool of submitted transactions that wait for a block.
+ * A submission only queues the transaction and returns its ID, the SHA-256 of the transaction in hexadecimal;
+ * a background miner drains the pool into batch blocks (see Block) once "blockchain.mempool.batch" transactions
+ * are pending (default 256) or the oldest one has waited "blockchain.mempool.delay" milliseconds (default 1000).
+ * The blocks are mined at difficulty "blockchain.mempool.difficulty" (default 2).
+ * The pool holds at most "blockchain.mempool.capacity" transactions (default 100000) and forgets all but the last
+ * "blockchain.mempool.confirmed" confirmations (default 100000). Pending transactions are not persisted.
+ * Submitting a transaction that is already pending, confirmed or anywhere on the chain returns the same ID
+ * and queues nothing; confirmations the pool has forgotten are looked up in the chain's index.
+ */
+public class Mempool {
+    private static final int BATCH = Math.max(1, Integer.getInteger("blockchain.mempool.batch", 256));
+    private static final long DELAY_NANOS = TimeUnit.MILLISECONDS.toNanos(Long.getLong("blockchain.mempool.delay", 1000));
+    private static final int DIFFICULTY = Integer.getInteger("blockchain.mempool.difficulty", 2);
+    private static final int CAPACITY = Integer.getInteger("blockchain.mempool.capacity", 100000);
+    private static final int CONFIRMED = Integer.getInteger("blockchain.mempool.confirmed", 100000);
+
+    private static final ThreadLocal<MessageDigest> digests = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    });
+
+    private final BlockChain chain;
+    private final ReentrantLock lock = new ReentrantLock();
+    // ready - signalled when the first transaction arrives and when a full batch is pending
+    private final Condition ready = lock.newCondition();
+
+    // pending - transactions in submission order, by ID
+    private final LinkedHashMap<String, Pending> pending = new LinkedHashMap<>();
+    // mining - transactions of the block being mined, by ID
+    private final Map<String, Pending> mining = new LinkedHashMap<>();
+    // confirmed - block index of the most recent confirmations, by ID
+    private final LinkedHashMap<String, Integer> confirmed = new LinkedHashMap<String, Integer>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+            return size() > CONFIRMED;
+        }
+    };
+
+    /**
+     * A transaction waiting for its block
+     */
+    private static final class Pending {
+        private final String transaction;
+        private final long submitted = System.nanoTime();
+        // confirmation - completed with the index of the block once the transaction is on the chain
+        private final CompletableFuture<Integer> confirmation = new CompletableFuture<>();
+
+        Pending(String transaction) {
+            this.transaction = transaction;
+        }
+    }
+
+    public Mempool(BlockChain chain) {
+        this.chain = chain;
+    }
+
+    /**
+     * Start the background miner
+     */
+    public void start() {
+        Thread miner = new Thread(this::mine, "mempool-miner");
+        miner.setDaemon(true);
+        miner.start();
+    }
+
+    /**
+     * @param transaction - the transaction
+     * @return the ID of the transaction, SHA-256 of its UTF-8 bytes in hexadecimal
+     */
+    public static String transactionId(String transaction) {
+        return BlockHasher.toHex(digests.get().digest(transaction.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Queue a transaction for the next batch block
+     * @param transaction - the transaction
+     * @return the ID of the transaction, or null if the pool is full
+     */
+    public String submit(String transaction) {
+        String id = transactionId(transaction);
+        // most new transactions are rejected by the index's Bloom filter without locking the chain;
+        // while a reopened chain is still being indexed the check is skipped rather than waited for
+        if (chain.isIndexed() && chain.findTransaction(id) != null) {
+            return id;
+        }
+        lock.lock();
+        try {
+            if (pending.containsKey(id) || mining.containsKey(id) || confirmed.containsKey(id)) {
+                return id;
+            }
+            if (pending.size() >= CAPACITY) {
+                return null;
+            }
+            pending.put(id, new Pending(transaction));
+            if (pending.size() == 1 || pending.size() >= BATCH) {
+                ready.signal();
+            }
+            return id;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param id - ID of a transaction
+     * @return a future completed with the index of the transaction's block once it is on the chain,
+     * null if the transaction is unknown
+     */
+    public CompletableFuture<Integer> confirmation(String id) {
+        lock.lock();
+        try {
+            Integer index = confirmed.get(id);
+            if (index != null) {
+                return CompletableFuture.completedFuture(index);
+            }
+            Pending entry = pending.get(id);
+            if (entry == null) {
+                entry = mining.get(id);
+            }
+            if (entry != null) {
+                return entry.confirmation;
+            }
+        } finally {
+            lock.unlock();
+        }
+        int[] blocks = chain.findTransaction(id);
+        return blocks == null ? null : CompletableFuture.completedFuture(blocks[0]);
+    }
+
+    /**
+     * @return number of transactions waiting for a block, including the block being mined
+     */
+    public int size() {
+        lock.lock();
+        try {
+            return pending.size() + mining.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * The miner loop: wait for a batch, mine it into a block, confirm its transactions
+     */
+    private void mine() {
+        while (true) {
+            try {
+                List<String> batch = nextBatch();
+                Block block = new Block(0, chain.getTime(), batch, DIFFICULTY);
+                chain.addBlock(block);
+                confirm(block.getIndex());
+                Log.debug("Mined {} pooled transactions into block {}", batch.size(), block.getIndex());
+            } catch (InterruptedException e) {
+                return;
+            } catch (RuntimeException e) {
+                // keep the transactions pending, they are mined again with the next batch
+                Log.error("Mining pooled transactions failed", e);
+                requeue();
+                // do not spin while the chain keeps failing
+                LockSupport.parkNanos(DELAY_NANOS);
+            }
+        }
+    }
+
+    /**
+     * Wait until a full batch is pending or the oldest transaction has waited long enough,
+     * and move the batch from pending to mining
+     * @return the transactions of the batch
+     */
+    private List<String> nextBatch() throws InterruptedException {
+        lock.lock();
+        try {
+            while (pending.isEmpty()) {
+                ready.await();
+            }
+            long waited = System.nanoTime() - pending.values().iterator().next().submitted;
+            while (pending.size() < BATCH && waited < DELAY_NANOS) {
+                ready.awaitNanos(DELAY_NANOS - waited);
+                waited = System.nanoTime() - pending.values().iterator().next().submitted;
+            }
+            List<String> batch = new ArrayList<>(Math.min(BATCH, pending.size()));
+            Iterator<Map.Entry<String, Pending>> entries = pending.entrySet().iterator();
+            while (entries.hasNext() && batch.size() < BATCH) {
+                Map.Entry<String, Pending> entry = entries.next();
+                entries.remove();
+                mining.put(entry.getKey(), entry.getValue());
+                batch.add(entry.getValue().transaction);
+            }
+            return batch;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Record that the block being mined is on the chain and tell the waiting clients
+     */
+    private void confirm(int index) {
+        List<Pending> done;
+        lock.lock();
+        try {
+            for (String id : mining.keySet()) {
+                confirmed.put(id, index);
+            }
+            done = new ArrayList<>(mining.values());
+            mining.clear();
+        } finally {
+            lock.unlock();
+        }
+        for (Pending entry : done) {
+            entry.confirmation.complete(index);
+        }
+    }
+
+    /**
+     * Put the transactions of a failed block back in front of the pending ones
+     */
+    private void requeue() {
+        lock.lock();
+        try {
+            LinkedHashMap<String, Pending> rest = new LinkedHashMap<>(pending);
+            pending.clear();
+            pending.putAll(mining);
+            pending.putAll(rest);
+            mining.clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
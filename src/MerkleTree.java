@@ -0,0 +1,132 @@
+import java.nio.charset.StandardCharsets;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * name: Enliang Wu
+ * email: enliangw@andrew.cmu.edu
+ *
+ * This class computes the Merkle root of the transactions of a block and inclusion proofs for single transactions.
+ * Leaves and inner nodes are hashed with different prefixes (SHA-256 of 0x00 + transaction, and of 0x01 + left + right),
+ * so a transaction can never be passed off as an inner node. A node without a sibling is carried up to the next level
+ * unchanged instead of being paired with itself, so two different lists of transactions never share a root.
+ * An inclusion proof lists the sibling hashes from the leaf up to the root, each written as "L:" or "R:"
+ * (the side the sibling is on) followed by the hash in hexadecimal; it holds about log2(n) hashes.
+ */
+public final class MerkleTree {
+    private static final byte LEAF = 0;
+    private static final byte NODE = 1;
+
+    private static final ThreadLocal<MessageDigest> digests = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    });
+
+    private MerkleTree() {
+    }
+
+    /**
+     * @param transactions - the transactions as UTF-8 bytes, at least one
+     * @return the raw root hash
+     */
+    static byte[] root(byte[][] transactions) {
+        byte[][] level = leaves(transactions);
+        while (level.length > 1) {
+            level = parents(level);
+        }
+        return level[0];
+    }
+
+    /**
+     * @param transactions - the transactions as UTF-8 bytes
+     * @param position - position of the proven transaction
+     * @return the sibling hashes from the leaf up to the root
+     */
+    static List<String> proof(byte[][] transactions, int position) {
+        List<String> path = new ArrayList<>();
+        byte[][] level = leaves(transactions);
+        while (level.length > 1) {
+            int sibling = position ^ 1;
+            if (sibling < level.length) {
+                path.add((sibling < position ? "L:" : "R:") + BlockHasher.toHex(level[sibling]));
+            }
+            level = parents(level);
+            position >>= 1;
+        }
+        return path;
+    }
+
+    /**
+     * Check an inclusion proof
+     * @param transaction - the proven transaction
+     * @param proof - sibling hashes as returned by proof
+     * @param root - Merkle root of the block, in hexadecimal
+     * @return true if the transaction and the proof lead to the root
+     */
+    public static boolean verify(String transaction, List<String> proof, String root) {
+        try {
+            byte[] hash = leaf(transaction.getBytes(StandardCharsets.UTF_8));
+            for (String step : proof) {
+                byte[] sibling = BlockHasher.fromHex(step.substring(2));
+                if (step.startsWith("L:")) {
+                    hash = node(sibling, hash);
+                } else if (step.startsWith("R:")) {
+                    hash = node(hash, sibling);
+                } else {
+                    return false;
+                }
+            }
+            return BlockHasher.toHex(hash).equalsIgnoreCase(root);
+        } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+            return false;
+        }
+    }
+
+    private static byte[][] leaves(byte[][] transactions) {
+        byte[][] level = new byte[transactions.length][];
+        for (int i = 0; i < level.length; i++) {
+            level[i] = leaf(transactions[i]);
+        }
+        return level;
+    }
+
+    private static byte[][] parents(byte[][] level) {
+        byte[][] parents = new byte[(level.length + 1) / 2][];
+        for (int i = 0; i < parents.length; i++) {
+            int left = 2 * i;
+            parents[i] = left + 1 < level.length ? node(level[left], level[left + 1]) : level[left];
+        }
+        return parents;
+    }
+
+    private static byte[] leaf(byte[] transaction) {
+        MessageDigest digest = digests.get();
+        digest.update(LEAF);
+        digest.update(transaction);
+        return finish(digest);
+    }
+
+    private static byte[] node(byte[] left, byte[] right) {
+        MessageDigest digest = digests.get();
+        digest.update(NODE);
+        digest.update(left);
+        digest.update(right);
+        return finish(digest);
+    }
+
+    private static byte[] finish(MessageDigest digest) {
+        byte[] hash = new byte[BlockHasher.HASH_LENGTH];
+        try {
+            digest.digest(hash, 0, BlockHasher.HASH_LENGTH);
+        } catch (DigestException e) {
+            throw new RuntimeException(e);
+        }
+        return hash;
+    }
+}
@@ -0,0 +1,39 @@
+/**
+ * name: Enliang Wu
+ * email: enliangw@andrew.cmu.edu
+ *
+ * This interface turns request and response messages into frame payloads and back.
+ * JSON is the default. A client may use the binary codec instead;
+ * the server recognizes the codec of every request by its first byte and answers in the same codec.
+ * Decoding errors are reported as IllegalArgumentException.
+ */
+public interface MessageCodec {
+    MessageCodec JSON = new JsonCodec();
+    MessageCodec BINARY = new BinaryCodec();
+
+    byte[] encodeRequest(RequestMessage message);
+
+    RequestMessage decodeRequest(byte[] bytes, int offset, int length);
+
+    byte[] encodeResponse(ResponseMessage message);
+
+    ResponseMessage decodeResponse(byte[] bytes, int offset, int length);
+
+    /**
+     * @param bytes - frame payload
+     * @param offset - start of the payload
+     * @param length - payload length
+     * @return the codec the payload was written with
+     */
+    static MessageCodec detect(byte[] bytes, int offset, int length) {
+        return length > 0 && bytes[offset] == BinaryCodec.MAGIC ? BINARY : JSON;
+    }
+
+    /**
+     * @param name - "json" or "binary"
+     * @return the codec with this name, JSON for unknown names
+     */
+    static MessageCodec forName(String name) {
+        return "binary".equalsIgnoreCase(name) ? BINARY : JSON;
+    }
+}
@@ -0,0 +1,207 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * name: Enliang Wu
+ * email: enliangw@andrew.cmu.edu
+ *
+ * This class runs the proof of work search of a block on a pool of worker threads.
+ * Workers hash candidates with BlockHasher, so the search loop does not allocate.
+ * The nonce space is split into striped ranges: with n workers, worker w tries the nonces
+ * start + w, start + w + n, start + w + 2n, ...
+ * As soon as a worker finds a nonce that gives a proper hash, it publishes it and
+ * every worker whose next candidate is above the published nonce stops.
+ * Because lower nonces are always allowed to finish, the winner is the smallest proper nonce,
+ * which is exactly the nonce a sequential search would have found.
+ * The number of workers is read from the system property "blockchain.miner.threads"
+ * and defaults to the number of available processors.
+ * Every worker reports the hashes it computes to its own HashRate meter,
+ * so the hash rate is measured on the real mining workload.
+ * A search done for a MiningJob also reports its progress to the job, and stops when the job is cancelled
+ * or its deadline has passed.
+ */
+public class Miner {
+    private static final Miner defaultMiner =
+            new Miner(Integer.getInteger("blockchain.miner.threads", Runtime.getRuntime().availableProcessors()));
+
+    // a worker reports to its meter after this many hashes, and when it stops
+    private static final int REPORT_INTERVAL = 1 << 14;
+
+    private final int threads;
+    private final ExecutorService pool;
+    private final HashRate[] rates;
+
+    /**
+     * Create a miner with a fixed number of worker threads
+     * @param threads - number of workers searching the nonce space, at least 1
+     */
+    public Miner(int threads) {
+        this.threads = Math.max(1, threads);
+        this.rates = new HashRate[this.threads];
+        for (int w = 0; w < this.threads; w++) {
+            rates[w] = new HashRate();
+        }
+        this.pool = Executors.newFixedThreadPool(this.threads, runnable -> {
+            Thread thread = new Thread(runnable, "miner");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * @return the miner shared by all blocks
+     */
+    public static Miner getDefault() {
+        return defaultMiner;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * @return the hash rate of all workers together, in hashes per second
+     */
+    public long getHashesPerSecond() {
+        long total = 0;
+        for (HashRate rate : rates) {
+            total += rate.getHashesPerSecond();
+        }
+        return total;
+    }
+
+    /**
+     * @return hashes computed by all workers since start up
+     */
+    public long getTotalHashes() {
+        long total = 0;
+        for (HashRate rate : rates) {
+            total += rate.getTotalHashes();
+        }
+        return total;
+    }
+
+    /**
+     * @return nanoseconds all workers together spent hashing since start up
+     */
+    public long getTotalBusyNanos() {
+        long total = 0;
+        for (HashRate rate : rates) {
+            total += rate.getTotalBusyNanos();
+        }
+        return total;
+    }
+
+    /**
+     * @return the hash rate of each worker, in hashes per second
+     */
+    public long[] getWorkerHashesPerSecond() {
+        long[] perWorker = new long[threads];
+        for (int w = 0; w < threads; w++) {
+            perWorker[w] = rates[w].getHashesPerSecond();
+        }
+        return perWorker;
+    }
+
+    /**
+     * Search for the smallest nonce, starting at the block's current nonce,
+     * that gives the block a hash with the required number of leading hex zeroes.
+     * The block itself is not modified, the caller writes the winning nonce back.
+     * @param block - block to mine
+     * @return the winning nonce
+     */
+    public long mine(Block block) {
+        return mine(block, null);
+    }
+
+    /**
+     * Search for the winning nonce like mine(block), on behalf of a job
+     * @param block - block to mine
+     * @param job - job told about the progress, null to search until a nonce is found
+     * @return the winning nonce
+     * @throws CancellationException if the job was cancelled or its deadline passed before a nonce was found
+     */
+    public long mine(Block block, MiningJob job) {
+        long start = block.nonce();
+        AtomicLong best = new AtomicLong(Long.MAX_VALUE);
+        if (threads == 1) {
+            search(block, start, 1, best, rates[0], job);
+        } else {
+            List<Callable<Long>> workers = new ArrayList<>();
+            for (int w = 0; w < threads; w++) {
+                long first = start + w;
+                HashRate rate = rates[w];
+                workers.add(() -> search(block, first, threads, best, rate, job));
+            }
+            try {
+                for (Future<Long> future : pool.invokeAll(workers)) {
+                    future.get();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e.getCause());
+            }
+        }
+        if (best.get() == Long.MAX_VALUE && job != null && job.isStopped()) {
+            throw new CancellationException(job.stopReason());
+        }
+        return best.get();
+    }
+
+    /**
+     * Try the nonces first, first + stride, ... until a proper hash is found
+     * or another worker has already found a smaller proper nonce
+     * @param rate - meter the hashes of this worker are reported to
+     * @param job - job the progress is reported to, null if there is none
+     * @return the nonce found by this worker, or Long.MAX_VALUE if it stopped early
+     */
+    private static long search(Block block, long first, int stride, AtomicLong best, HashRate rate, MiningJob job) {
+        int difficulty = block.getDifficulty();
+        byte[] prefix = block.headerPrefix();
+        byte[] suffix = block.headerSuffix();
+        byte[] hash = new byte[BlockHasher.HASH_LENGTH];
+        BlockHasher hasher = BlockHasher.get();
+        long count = 0;
+        long started = System.nanoTime();
+        try {
+            for (long nonce = first; nonce < best.get(); nonce += stride) {
+                hasher.hash(prefix, nonce, suffix, hash);
+                if (++count == REPORT_INTERVAL) {
+                    long now = System.nanoTime();
+                    rate.record(count, now - started);
+                    count = 0;
+                    started = now;
+                    if (job != null) {
+                        job.progress(REPORT_INTERVAL);
+                        if (job.isStopped()) {
+                            return Long.MAX_VALUE;
+                        }
+                    }
+                }
+                if (BlockHasher.hasLeadingZeroNibbles(hash, difficulty)) {
+                    // keep the smallest winning nonce
+                    long current = best.get();
+                    while (nonce < current && !best.compareAndSet(current, nonce)) {
+                        current = best.get();
+                    }
+                    return nonce;
+                }
+            }
+            return Long.MAX_VALUE;
+        } finally {
+            rate.record(count, System.nanoTime() - started);
+            if (job != null) {
+                job.progress(count);
+            }
+        }
+    }
+}
@@ -0,0 +1,150 @@
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * name: Enliang Wu
+ * email: enliangw@andrew.cmu.edu
+ *
+ * This class tracks the mining of one block: its state, the nonces tried so far, the hash rate and the deadline.
+ * The miner workers report their progress to the job and stop searching once it is cancelled
+ * or its deadline has passed, so a block of a runaway difficulty can not hold the chain forever.
+ * Jobs are created and run by MiningJobs.
+ */
+public class MiningJob {
+
+    public enum State { QUEUED, RUNNING, DONE, CANCELLED, TIMED_OUT, FAILED }
+
+    private final long id;
+    private final int difficulty;
+    // deadline - System.nanoTime() after which the search stops
+    private final long deadline;
+    private final LongAdder hashes = new LongAdder();
+
+    private volatile State state = State.QUEUED;
+    private volatile boolean cancelled;
+    private volatile long started;
+    private volatile long ended;
+    private volatile int blockIndex = -1;
+    private volatile String error;
+
+    /**
+     * @param id - ID of the job
+     * @param difficulty - difficulty of the mined block
+     * @param deadlineMillis - milliseconds from now after which mining stops
+     */
+    MiningJob(long id, int difficulty, long deadlineMillis) {
+        this.id = id;
+        this.difficulty = difficulty;
+        this.deadline = System.nanoTime() + deadlineMillis * 1_000_000L;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    /**
+     * @return index of the mined block, -1 until the job is done
+     */
+    public int getBlockIndex() {
+        return blockIndex;
+    }
+
+    /**
+     * @return the number of nonces tried so far
+     */
+    public long getHashes() {
+        return hashes.sum();
+    }
+
+    /**
+     * @return nonces tried per second since the job started running, 0 before
+     */
+    public long getHashesPerSecond() {
+        long start = started;
+        if (start == 0) {
+            return 0;
+        }
+        long end = ended != 0 ? ended : System.nanoTime();
+        return end == start ? 0 : (long) (getHashes() * 1e9 / (end - start));
+    }
+
+    /**
+     * @return true once the job is cancelled or its deadline has passed, the miner then stops searching
+     */
+    boolean isStopped() {
+        return cancelled || System.nanoTime() - deadline > 0;
+    }
+
+    /**
+     * @return why the job stopped
+     */
+    String stopReason() {
+        return cancelled ? "Mining job " + id + " was cancelled" : "Mining job " + id + " passed its deadline";
+    }
+
+    /**
+     * Ask the job to stop. A running job stops at the next progress report of its workers.
+     * @return false if the job has already finished
+     */
+    public boolean cancel() {
+        if (ended != 0) {
+            return false;
+        }
+        cancelled = true;
+        return true;
+    }
+
+    void progress(long count) {
+        hashes.add(count);
+    }
+
+    void running() {
+        started = System.nanoTime();
+        state = State.RUNNING;
+    }
+
+    void done(int index) {
+        blockIndex = index;
+        finish(State.DONE);
+    }
+
+    void stopped() {
+        finish(cancelled ? State.CANCELLED : State.TIMED_OUT);
+    }
+
+    void failed(String message) {
+        error = message;
+        finish(State.FAILED);
+    }
+
+    private void finish(State state) {
+        ended = System.nanoTime();
+        this.state = state;
+    }
+
+    /**
+     * @return the state and progress of the job in one sentence
+     */
+    public String describe() {
+        String tried = getHashes() + " nonces tried at difficulty " + difficulty;
+        switch (state) {
+            case QUEUED:
+                return "Mining job " + id + " is queued";
+            case RUNNING:
+                return String.format(Locale.ROOT, "Mining job %d is running: %s, %d hashes per second, %.1f seconds to the deadline",
+                        id, tried, getHashesPerSecond(), Math.max(0, deadline - System.nanoTime()) / 1e9);
+            case DONE:
+                return "Mining job " + id + " is done: block " + blockIndex + " after " + tried;
+            case CANCELLED:
+                return "Mining job " + id + " was cancelled after " + tried;
+            case TIMED_OUT:
+                return "Mining job " + id + " passed its deadline after " + tried;
+            default:
+                return "Mining job " + id + " failed: " + error;
+        }
+    }
+}
@@ -0,0 +1,109 @@
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * name: Enliang Wu
+ * email: enliangw@andrew.cmu.edu
+ *
+ * This class runs and keeps track of the mining jobs of the server.
+ * Blocks added by a client are mined as jobs, either while the client waits (request type 1)
+ * or in the background (request type 13), one background job at a time since blocks are appended in order.
+ * Every job has a deadline, at most "blockchain.mining.deadline" milliseconds (default 60000);
+ * at most "blockchain.mining.queue" background jobs (default 100) may wait,
+ * and the last "blockchain.mining.retain" finished jobs (default 1000) can still be looked up.
+ */
+public class MiningJobs {
+    static final long DEADLINE = Long.getLong("blockchain.mining.deadline", 60000);
+    private static final int QUEUE = Integer.getInteger("blockchain.mining.queue", 100);
+    private static final int RETAIN = Integer.getInteger("blockchain.mining.retain", 1000);
+
+    private final BlockChain chain;
+    private final AtomicLong ids = new AtomicLong();
+    private final Map<Long, MiningJob> jobs = new ConcurrentHashMap<>();
+    private final Queue<Long> finished = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final ExecutorService background = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "mining-jobs");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public MiningJobs(BlockChain chain) {
+        this.chain = chain;
+    }
+
+    /**
+     * Mine a block and append it to the chain in the calling thread
+     * @param block - the block to add
+     * @param deadlineMillis - milliseconds the mining may take, at most DEADLINE
+     * @return the finished job
+     */
+    public MiningJob run(Block block, long deadlineMillis) {
+        MiningJob job = create(block, deadlineMillis);
+        execute(job, block);
+        return job;
+    }
+
+    /**
+     * Queue a block to be mined and appended in the background
+     * @param block - the block to add
+     * @param deadlineMillis - milliseconds from now the job may take, at most DEADLINE
+     * @return the queued job, or null if too many jobs are waiting
+     */
+    public MiningJob submit(Block block, long deadlineMillis) {
+        if (queued.incrementAndGet() > QUEUE) {
+            queued.decrementAndGet();
+            return null;
+        }
+        MiningJob job = create(block, deadlineMillis);
+        background.execute(() -> {
+            queued.decrementAndGet();
+            execute(job, block);
+        });
+        return job;
+    }
+
+    /**
+     * @param id - ID of a job
+     * @return the job, null if it is unknown or finished too long ago
+     */
+    public MiningJob get(long id) {
+        return jobs.get(id);
+    }
+
+    private MiningJob create(Block block, long deadlineMillis) {
+        long deadline = deadlineMillis <= 0 ? DEADLINE : Math.min(deadlineMillis, DEADLINE);
+        MiningJob job = new MiningJob(ids.incrementAndGet(), block.getDifficulty(), deadline);
+        jobs.put(job.getId(), job);
+        return job;
+    }
+
+    private void execute(MiningJob job, Block block) {
+        try {
+            if (job.isStopped()) {
+                // cancelled or out of time while it was queued
+                job.stopped();
+            } else {
+                job.running();
+                chain.addBlock(block, job);
+                job.done(block.getIndex());
+            }
+        } catch (CancellationException e) {
+            job.stopped();
+        } catch (RuntimeException e) {
+            Log.error("Mining job {} failed", job.getId(), e);
+            job.failed(e.toString());
+        }
+        finished.add(job.getId());
+        while (finished.size() > RETAIN) {
+            jobs.remove(finished.poll());
+        }
+    }
+}
@@ -0,0 +1,421 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ *
+ * This is a non-blocking TCP server built on java.nio selectors.
+ * The acceptor hands every connection to one of a few event loops.
+ * An event loop decodes request frames (see FrameCodec) from a direct buffer and hands the requests
+ * to a separate compute pool, so the network loop never waits for proof of work or a lock of the chain.
+ * Requests of one connection are answered in order, one at a time, and a connection is not read from
+ * while a request is being served or its answers are not yet written.
+ *
+ * The number of event loops is read from "blockchain.nio.loops" (default 2)
+ * and the size of the compute pool from "blockchain.nio.compute" (default number of processors).
+ *
+ * @author Enliang Wu
+ * email: enliangw@andrew.cmu.edu
+ */
+public class NioServer {
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    private final int port;
+    private final EventLoop[] loops;
+    private final ExecutorService compute;
+
+    public NioServer(int port) {
+        this.port = port;
+        this.loops = new EventLoop[Math.max(1, Integer.getInteger("blockchain.nio.loops", 2))];
+        this.compute = Executors.newFixedThreadPool(
+                Integer.getInteger("blockchain.nio.compute", Runtime.getRuntime().availableProcessors()));
+    }
+
+    /**
+     * Start the event loops and accept connections until the server socket fails
+     * @throws IOException if the server socket can not be opened
+     */
+    public void run() throws IOException {
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop();
+            Thread thread = new Thread(loops[i], "nio-loop-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        try (ServerSocketChannel listenChannel = ServerSocketChannel.open()) {
+            listenChannel.bind(new InetSocketAddress(port));
+            int next = 0;
+            while (true) {
+                SocketChannel channel = listenChannel.accept();
+                loops[next].register(channel);
+                next = (next + 1) % loops.length;
+            }
+        } finally {
+            compute.shutdown();
+        }
+    }
+
+    /**
+     * The state of one client connection, only touched by its event loop
+     */
+    private static class Connection {
+        private final SocketChannel channel;
+        private final FrameDecoder in = new FrameDecoder(BUFFER_SIZE);
+        private final Queue<ByteBuffer> out = new ArrayDeque<>();
+        private boolean busy;
+        private boolean closing;
+        private MessageCodec codec = MessageCodec.JSON;
+        // stream - the chain stream being written, see streamNext
+        private ChainStream stream;
+        // received, type - when the request being served was read and its type, for the metrics
+        private long received;
+        private int type;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+    }
+
+    /**
+     * A selector thread serving many connections
+     */
+    private class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+        EventLoop() throws IOException {
+            selector = Selector.open();
+        }
+
+        /**
+         * Hand a new connection to this loop, may be called from any thread
+         */
+        void register(SocketChannel channel) {
+            execute(() -> {
+                Server.metrics.connectionOpened();
+                try {
+                    channel.configureBlocking(false);
+                    channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                    channel.register(selector, SelectionKey.OP_READ, new Connection(channel));
+                } catch (IOException e) {
+                    close(channel);
+                }
+            });
+        }
+
+        /**
+         * Run a task on this loop, may be called from any thread
+         */
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    selector.select();
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        try {
+                            task.run();
+                        } catch (RuntimeException e) {
+                            Log.error("Event loop task failed", e);
+                        }
+                    }
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        try {
+                            if (key.isValid() && key.isReadable()) {
+                                read(key);
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                write(key);
+                                // the next request is served once the answers before it are written
+                                process(key);
+                            }
+                        } catch (IOException e) {
+                            key.cancel();
+                            close(((Connection) key.attachment()).channel);
+                        } catch (RuntimeException e) {
+                            // a connection that breaks the loop is dropped, the other connections go on
+                            Log.error("Serving a connection failed", e);
+                            key.cancel();
+                            close(((Connection) key.attachment()).channel);
+                        }
+                    }
+                } catch (IOException e) {
+                    Log.warn("IO: {}", e.getMessage());
+                }
+            }
+        }
+
+        private void read(SelectionKey key) throws IOException {
+            Connection connection = (Connection) key.attachment();
+            ByteBuffer buffer = connection.in.buffer();
+            // without a buffer a complete request is waiting, it is served before more bytes are read
+            if (buffer != null && connection.channel.read(buffer) < 0) {
+                key.cancel();
+                close(connection.channel);
+                return;
+            }
+            process(key);
+        }
+
+        /**
+         * Serve the pipelined requests of a connection one at a time.
+         * A connection is only read from while it is idle, no request is being served and all its answers
+         * have been written, so a client that does not read its answers stops being read instead of
+         * making the server buffer them.
+         */
+        private void process(SelectionKey key) {
+            Connection connection = (Connection) key.attachment();
+            while (key.isValid() && !connection.busy && !connection.closing && connection.out.isEmpty()) {
+                byte[] bytes;
+                try {
+                    bytes = connection.in.next();
+                } catch (IOException e) {
+                    // the stream can not be resynchronized after a broken frame
+                    key.cancel();
+                    close(connection.channel);
+                    return;
+                }
+                if (bytes == null) {
+                    break;
+                }
+                serve(key, bytes);
+            }
+            if (key.isValid()) {
+                boolean idle = !connection.busy && !connection.closing && connection.out.isEmpty();
+                key.interestOps(idle
+                        ? key.interestOps() | SelectionKey.OP_READ : key.interestOps() & ~SelectionKey.OP_READ);
+            }
+        }
+
+        /**
+         * Decode a request and hand it to the compute pool.
+         * Every request but exit may take a lock of the chain, which is never waited for on an event loop:
+         * a reader queued behind a waiting append would stall all the connections of the loop.
+         */
+        private void serve(SelectionKey key, byte[] bytes) {
+            Connection connection = (Connection) key.attachment();
+            connection.received = System.nanoTime();
+            connection.type = ServerMetrics.INVALID_TYPE;
+            Server.metrics.received(FrameCodec.HEADER_LENGTH + bytes.length);
+
+            // answer in the codec the client used
+            connection.codec = MessageCodec.detect(bytes, 0, bytes.length);
+            RequestMessage requestMessage;
+            try {
+                requestMessage = connection.codec.decodeRequest(bytes, 0, bytes.length);
+            } catch (IllegalArgumentException e) {
+                respond(key, Server.createFailureResponse("Invalid request"));
+                return;
+            }
+            connection.type = requestMessage.getType();
+            if (requestMessage.getType() == 6) {
+                // answer the exit request, then close once the answer has been written
+                connection.closing = true;
+                respond(key, answer(requestMessage));
+                return;
+            }
+
+            connection.busy = true;
+            if (requestMessage.getType() == 8) {
+                compute.execute(() -> {
+                    ChainStream stream;
+                    try {
+                        stream = Server.openStream(requestMessage);
+                    } catch (RuntimeException e) {
+                        Log.error("Request {} failed", requestMessage.getType(), e);
+                        complete(key, Server.createFailureResponse("Internal error"));
+                        return;
+                    }
+                    if (stream == null) {
+                        complete(key, Server.createFailureResponse("Invalid params"));
+                        return;
+                    }
+                    execute(() -> {
+                        connection.stream = stream;
+                        streamNext(key);
+                    });
+                });
+            } else if (requestMessage.getType() == 12) {
+                // a confirmation may be waited for, it is answered when it completes
+                compute.execute(() -> {
+                    CompletableFuture<ResponseMessage> confirmation;
+                    try {
+                        confirmation = Server.confirmation(requestMessage);
+                    } catch (RuntimeException e) {
+                        confirmation = CompletableFuture.failedFuture(e);
+                    }
+                    confirmation.whenComplete((response, e) -> {
+                        if (e != null) {
+                            Log.error("Request {} failed", requestMessage.getType(), e);
+                        }
+                        complete(key, e == null ? response : Server.createFailureResponse("Internal error"));
+                    });
+                });
+            } else {
+                compute.execute(() -> complete(key, answer(requestMessage)));
+            }
+        }
+
+        /**
+         * Answer a request, a request that fails is logged and answered "Internal error"
+         * so it can neither stop the event loop nor leave its connection waiting
+         */
+        private ResponseMessage answer(RequestMessage requestMessage) {
+            try {
+                return Server.getResponse(requestMessage);
+            } catch (RuntimeException e) {
+                Log.error("Request {} failed", requestMessage.getType(), e);
+                return Server.createFailureResponse("Internal error");
+            }
+        }
+
+        /**
+         * Respond on this loop to a request served elsewhere, then go on with the connection's next request.
+         * May be called from any thread.
+         */
+        private void complete(SelectionKey key, ResponseMessage responseMessage) {
+            execute(() -> {
+                respond(key, responseMessage);
+                process(key);
+            });
+        }
+
+        /**
+         * Queue a response and write as much of it as the socket takes
+         */
+        private void respond(SelectionKey key, ResponseMessage responseMessage) {
+            Connection connection = (Connection) key.attachment();
+            connection.busy = false;
+            if (!key.isValid()) {
+                return;
+            }
+            queue(connection, responseMessage);
+            Server.metrics.record(connection.type, responseMessage.isSuccess(), System.nanoTime() - connection.received);
+            flush(key);
+        }
+
+        /**
+         * Copy the next page of a chain stream on the compute pool and queue it.
+         * The following page is only copied once this one has been written,
+         * so a slow client never makes the server buffer the chain.
+         */
+        private void streamNext(SelectionKey key) {
+            Connection connection = (Connection) key.attachment();
+            ChainStream stream = connection.stream;
+            compute.execute(() -> {
+                ResponseMessage page;
+                try {
+                    page = stream.next();
+                } catch (RuntimeException e) {
+                    // the stream can not go on, end it with the failure
+                    Log.error("Streaming the chain failed", e);
+                    ResponseMessage failure = Server.createFailureResponse("Internal error");
+                    execute(() -> {
+                        connection.stream = null;
+                        respond(key, failure);
+                        process(key);
+                    });
+                    return;
+                }
+                execute(() -> {
+                    if (!stream.hasNext()) {
+                        // the last page ends the stream like a normal response
+                        connection.stream = null;
+                        respond(key, page);
+                        process(key);
+                        return;
+                    }
+                    if (!key.isValid()) {
+                        return;
+                    }
+                    queue(connection, page);
+                    flush(key);
+                });
+            });
+        }
+
+        /**
+         * Frame a response and add it to the output of a connection
+         */
+        private void queue(Connection connection, ResponseMessage responseMessage) {
+            ByteBuffer frame = FrameCodec.encode(connection.codec.encodeResponse(responseMessage));
+            Server.metrics.sent(frame.remaining());
+            connection.out.add(frame);
+        }
+
+        /**
+         * Write the output of a connection, closing it if the socket fails
+         */
+        private void flush(SelectionKey key) {
+            try {
+                write(key);
+            } catch (IOException e) {
+                key.cancel();
+                close(((Connection) key.attachment()).channel);
+            }
+        }
+
+        private void write(SelectionKey key) throws IOException {
+            Connection connection = (Connection) key.attachment();
+            while (!connection.out.isEmpty()) {
+                ByteBuffer buffer = connection.out.peek();
+                connection.channel.write(buffer);
+                if (buffer.hasRemaining()) {
+                    // the socket is full, wait until it is writable again
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+                connection.out.poll();
+            }
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            if (connection.stream != null) {
+                streamNext(key);
+            }
+            finish(key);
+        }
+
+        /**
+         * Close a connection that asked to exit once everything has been written
+         */
+        private void finish(SelectionKey key) {
+            Connection connection = (Connection) key.attachment();
+            if (connection.closing && connection.out.isEmpty()) {
+                key.cancel();
+                close(connection.channel);
+            }
+        }
+    }
+
+    private static void close(SocketChannel channel) {
+        if (!channel.isOpen()) {
+            return;
+        }
+        Server.metrics.connectionClosed();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            Log.warn("Closing a connection failed", e);
+        }
+    }
+}
@@ -1,5 +1,7 @@
 import com.alibaba.fastjson.JSONObject;
 
+import java.util.List;
+
 /**
  * name: Enliang Wu
  * email: enliangw@andrew.cmu.edu
@@ -9,6 +11,10 @@ public class RequestMessage {
     private int difficulty;
     private String data;
     private int index;
+    private int count;
+    private boolean fullScan;
+    // transactions - the batch of a type 1 request that adds a block of several transactions
+    private List<String> transactions;
 
     public RequestMessage() {
     }
@@ -56,6 +62,30 @@ public class RequestMessage {
         this.index = index;
     }
 
+    public int getCount() {
+        return count;
+    }
+
+    public void setCount(int count) {
+        this.count = count;
+    }
+
+    public boolean isFullScan() {
+        return fullScan;
+    }
+
+    public void setFullScan(boolean fullScan) {
+        this.fullScan = fullScan;
+    }
+
+    public List<String> getTransactions() {
+        return transactions;
+    }
+
+    public void setTransactions(List<String> transactions) {
+        this.transactions = transactions;
+    }
+
     @Override
     public String toString() {
         return JSONObject.toJSONString(this);
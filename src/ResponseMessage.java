@@ -1,4 +1,5 @@
 import com.alibaba.fastjson.JSONObject;
+import java.util.List;
 
 /**
  * name: Enliang Wu
@@ -9,6 +10,14 @@ public class ResponseMessage {
     private String data;
     private long executionTime;
     private String errMsg;
+    // blocks and chainHash are set when a response carries blocks, see MessageCodec
+    private List<Block> blocks;
+    private String chainHash;
+    // more is set on every response of a stream except the last one
+    private boolean more;
+    // proof and merkleRoot are set on the answer to an inclusion proof request (type 10), see MerkleTree
+    private List<String> proof;
+    private String merkleRoot;
 
     public ResponseMessage() {
     }
@@ -52,6 +61,46 @@ public class ResponseMessage {
         this.errMsg = errMsg;
     }
 
+    public List<Block> getBlocks() {
+        return blocks;
+    }
+
+    public void setBlocks(List<Block> blocks) {
+        this.blocks = blocks;
+    }
+
+    public String getChainHash() {
+        return chainHash;
+    }
+
+    public void setChainHash(String chainHash) {
+        this.chainHash = chainHash;
+    }
+
+    public boolean isMore() {
+        return more;
+    }
+
+    public void setMore(boolean more) {
+        this.more = more;
+    }
+
+    public List<String> getProof() {
+        return proof;
+    }
+
+    public void setProof(List<String> proof) {
+        this.proof = proof;
+    }
+
+    public String getMerkleRoot() {
+        return merkleRoot;
+    }
+
+    public void setMerkleRoot(String merkleRoot) {
+        this.merkleRoot = merkleRoot;
+    }
+
     @Override
     public String toString() {
         return JSONObject.toJSONString(this);
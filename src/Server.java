@@ -1,180 +1,542 @@
-import com.alibaba.fastjson.JSONException;
-import com.alibaba.fastjson.JSONObject;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.PrintStream;
+import java.io.OutputStream;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  *
  * This is a TCP server.
  * It receives requests from client side
  * After processing the request, it will send the response back to client
+ * Requests and responses are framed by FrameCodec and encoded by the MessageCodec the client chose.
+ * Every connection is served by a worker thread, so clients are served concurrently.
+ * At most "blockchain.server.threads" connections (default 64) are served at once; a client connecting
+ * beyond that is answered "Server busy" right away and disconnected instead of waiting for a free worker.
+ * Concurrent access to the chain is coordinated inside BlockChain.
+ * With -Dblockchain.server.nio=true the connections are served by NioServer instead.
+ * The chain is kept in a BlockStore in the directory "blockchain.dir" (default "data") and survives restarts.
+ * Every request is counted in ServerMetrics, which are returned for request type 9 and served over HTTP.
+ * Blocks are mined as MiningJobs with a deadline; request type 13 mines in the background,
+ * its progress is looked up with type 14 and it is cancelled with type 15.
+ * The transfers (type 16) and balance (type 17) of an account are read from the chain's Ledger.
+ * Blocks are found by hash (type 18) and transactions by ID (type 19) through the chain's BlockIndex.
  *
  * @author Enliang Wu
  * email: enliangw@andrew.cmu.edu
  */
 public class Server {
+    static final int PORT = 6789;
+
+    /** MAX_PAGE - the most blocks a range (type 7) or history (type 16) request returns, read from "blockchain.page.max" */
+    private static final int MAX_PAGE = Integer.getInteger("blockchain.page.max", 1000);
+
     private static BlockChain blockChain;
 
+    /** mempool - transactions submitted with request type 11, mined in batches in the background */
+    private static Mempool mempool;
+
+    /** jobs - mining of the blocks added with request types 1 and 13 */
+    private static MiningJobs jobs;
+
+    /** MAX_WAIT - the longest a confirmation request (type 12) may wait, read from "blockchain.mempool.wait.max" */
+    private static final long MAX_WAIT = Long.getLong("blockchain.mempool.wait.max", 60000);
+
+    /** metrics - counters and latencies of the served requests, see request type 9 */
+    static final ServerMetrics metrics = new ServerMetrics();
+
+    /**
+     * workers - serve the client connections, one thread each up to "blockchain.server.threads";
+     * threads are started as clients connect and stop after a minute without a connection
+     */
+    private static final ExecutorService workers = new ThreadPoolExecutor(0,
+            Integer.getInteger("blockchain.server.threads", 64), 60, TimeUnit.SECONDS, new SynchronousQueue<>());
+
     public static void main(String args[]) {
-        System.out.println("Blockchain server running");
+        Log.info("Blockchain server running");
 
-        blockChain = new BlockChain();
+        // reopen the chain stored in "blockchain.dir"
+        try {
+            BlockStore store = BlockStore.open(Paths.get(System.getProperty("blockchain.dir", "data")));
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    store.close();
+                } catch (IOException e) {
+                    Log.error("Closing the block store failed", e);
+                }
+            }));
+            long start = System.currentTimeMillis();
+            blockChain = new BlockChain(store);
+            Log.info("Loaded {} blocks in {} milliseconds", blockChain.getChainSize(), System.currentTimeMillis() - start);
+        } catch (IOException e) {
+            Log.error("IO: {}", e.getMessage());
+            return;
+        }
 
-        // add a genesis block when initialize
-        Block genesisBlock = new Block(0, blockChain.getTime(), "", 2);
-        blockChain.addBlock(genesisBlock);
+        // add a genesis block when the chain is new
+        if (blockChain.getChainSize() == 0) {
+            Block genesisBlock = new Block(0, blockChain.getTime(), "", 2);
+            blockChain.addBlock(genesisBlock);
+        }
 
-        blockChain.computeHashesPerSecond();
+        jobs = new MiningJobs(blockChain);
+        mempool = new Mempool(blockChain);
+        mempool.start();
 
+        // the metrics are also served over HTTP, for scrapers
+        HttpServer endpoint = null;
+        try {
+            endpoint = metrics.startEndpoint(blockChain, mempool);
+        } catch (IOException e) {
+            Log.warn("Metrics endpoint: {}", e.getMessage());
+        }
+        try {
+            listen();
+        } finally {
+            if (endpoint != null) {
+                endpoint.stop(0);
+            }
+        }
+    }
+
+    /**
+     * Accept and serve client connections until the server socket fails
+     */
+    private static void listen() {
+        if (Boolean.getBoolean("blockchain.server.nio")) {
+            // non-blocking mode, a few event loops serve all connections
+            try {
+                new NioServer(PORT).run();
+            } catch (IOException e) {
+                Log.error("IO: {}", e.getMessage());
+            }
+            return;
+        }
 
         ServerSocket listenSocket = null;
-        // create a byte array and use as a buffer
-        byte[] buffer = new byte[1024];
         try {
-            listenSocket = new ServerSocket(6789);
-            // use a loop to listen for client requests
+            listenSocket = new ServerSocket(PORT);
+            // use a loop to listen for client requests, every connection is served by a worker of the pool
             while (true) {
-                // get data from client
                 Socket clientSocket = listenSocket.accept();
-                System.out.println("We have a visitor");
-
-                InputStream in = clientSocket.getInputStream();
-                PrintStream out = new PrintStream(clientSocket.getOutputStream());
-
-                while (true) {
-                    try {
-                        byte[] data = new byte[1024];
-                        int total = 0;
-                        int len = in.read(buffer);
-                        if (len > 0) {
-                            System.arraycopy(buffer, 0, data, total, len);
-                            total += len;
-                        }
-                        while (in.available() > 0) {
-                            len = in.read(buffer);
-                            if (len > 0) {
-                                System.arraycopy(buffer, 0, data, total, len);
-                                total += len;
-                            }
-                        }
-
-                        byte[] correct = new byte[total];
-                        System.arraycopy(data, 0, correct, 0, total);
-                        String requestString = new String(correct);
-                        RequestMessage requestMessage = null;
-                        ResponseMessage responseMessage;
-                        try {
-                            requestMessage = JSONObject.parseObject(requestString, RequestMessage.class);
-                            responseMessage = getResponse(requestMessage);
-                            if (requestMessage.getType() == 6) {
-                                clientSocket.close();
-                                break;
-                            }
-                        } catch (JSONException e) {
-                            responseMessage = createFailureResponse("Invalid request");
-                        }
-
-                        System.out.println("Receive client request " + requestMessage);
-                        System.out.println("Send back response " + responseMessage);
-                        out.write(JSONObject.toJSONBytes(responseMessage));
-                    } catch (SocketException e) {
-                        e.printStackTrace();
-                        break;
-                    }
+                Log.debug("We have a visitor");
+                try {
+                    workers.execute(() -> serve(clientSocket));
+                } catch (RejectedExecutionException e) {
+                    refuse(clientSocket);
                 }
             }
         } catch (SocketException e) {
             // handle socket exception
-            System.out.println("Socket: " + e.getMessage());
+            Log.error("Socket: {}", e.getMessage());
         } catch (IOException e) {
             // handle io exception
-            System.out.println("IO: " + e.getMessage());
+            Log.error("IO: {}", e.getMessage());
         } catch (Exception e) {
-            e.printStackTrace();
+            Log.error("Server failed", e);
         } finally {
             // close socket
             if (listenSocket != null) {
                 try {
                     listenSocket.close();
                 } catch (IOException e) {
-                    e.printStackTrace();
+                    Log.warn("Closing the server socket failed", e);
                 }
             }
+            workers.shutdown();
+        }
+    }
+
+    /**
+     * Answer a client that connected while every worker is busy, and disconnect it.
+     * No request has been read, so the answer is in JSON; clients detect the codec of a response.
+     * @param clientSocket - connection to the client
+     */
+    private static void refuse(Socket clientSocket) {
+        Log.warn("All {} workers are busy, refusing a connection", ((ThreadPoolExecutor) workers).getMaximumPoolSize());
+        try (Socket socket = clientSocket) {
+            OutputStream out = socket.getOutputStream();
+            FrameCodec.writeFrame(out, MessageCodec.JSON.encodeResponse(createFailureResponse("Server busy, try again later")));
+            out.flush();
+        } catch (IOException e) {
+            Log.warn("IO: {}", e.getMessage());
         }
     }
 
-    private static ResponseMessage getResponse(RequestMessage message) {
+    /**
+     * Serve the requests of one client until it exits or the connection is closed
+     * @param clientSocket - connection to the client
+     */
+    private static void serve(Socket clientSocket) {
+        metrics.connectionOpened();
+        try {
+            // a response larger than the output buffer is written in several segments, do not let them wait for acks
+            clientSocket.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(clientSocket.getInputStream()));
+            OutputStream out = new BufferedOutputStream(clientSocket.getOutputStream());
+
+            // every request is one frame, several requests may be pipelined on the connection
+            byte[] frame;
+            while ((frame = FrameCodec.readFrame(in)) != null) {
+                long received = System.nanoTime();
+                metrics.received(FrameCodec.HEADER_LENGTH + frame.length);
+                // answer in the codec the client used
+                MessageCodec codec = MessageCodec.detect(frame, 0, frame.length);
+                RequestMessage requestMessage = null;
+                ResponseMessage responseMessage;
+                try {
+                    requestMessage = codec.decodeRequest(frame, 0, frame.length);
+                    if (requestMessage.getType() == 8) {
+                        ChainStream stream = openStream(requestMessage);
+                        if (stream != null) {
+                            // write the chain page by page, only one page is held in memory
+                            while (stream.hasNext()) {
+                                write(out, codec.encodeResponse(stream.next()));
+                            }
+                            metrics.record(8, true, System.nanoTime() - received);
+                            continue;
+                        }
+                        responseMessage = createFailureResponse("Invalid params");
+                    } else {
+                        responseMessage = getResponse(requestMessage);
+                    }
+                } catch (IllegalArgumentException e) {
+                    responseMessage = createFailureResponse("Invalid request");
+                } catch (RuntimeException e) {
+                    Log.error("Request {} failed", requestMessage == null ? null : requestMessage.getType(), e);
+                    responseMessage = createFailureResponse("Internal error");
+                }
+
+                Log.payload("Receive client request {}, send back response {}", requestMessage, responseMessage);
+                write(out, codec.encodeResponse(responseMessage));
+                metrics.record(requestMessage == null ? ServerMetrics.INVALID_TYPE : requestMessage.getType(),
+                        responseMessage.isSuccess(), System.nanoTime() - received);
+                if (requestMessage != null && requestMessage.getType() == 6) {
+                    break;
+                }
+            }
+        } catch (SocketException e) {
+            Log.warn("Socket: {}", e.getMessage());
+        } catch (IOException e) {
+            Log.warn("IO: {}", e.getMessage());
+        } finally {
+            metrics.connectionClosed();
+            try {
+                clientSocket.close();
+            } catch (IOException e) {
+                Log.warn("Closing a connection failed", e);
+            }
+        }
+    }
+
+    /**
+     * Write one response frame and count its bytes
+     */
+    private static void write(OutputStream out, byte[] payload) throws IOException {
+        FrameCodec.writeFrame(out, payload);
+        out.flush();
+        metrics.sent(FrameCodec.HEADER_LENGTH + payload.length);
+    }
+
+    static ResponseMessage getResponse(RequestMessage message) {
         long start, duration;
         StringBuilder sb;
         switch (message.getType()) {
             case 0:
-                System.out.println("View chain status");
+                Log.debug("View chain status");
                 return createSuccessResponse(blockChain.toString(), 0);
             case 1:
-                System.out.println("Adding a block");
-                if (message.getDifficulty() <= 0 || message.getData() == null) {
+                Log.debug("Adding a block");
+                // a request with transactions adds one batch block for all of them
+                if (!isValidBlock(message)) {
                     return createFailureResponse("Invalid params");
                 }
                 start = System.currentTimeMillis();
-                blockChain.addBlock(new Block(blockChain.getChainSize(), blockChain.getTime(), message.getData(), message.getDifficulty()));
+                // the index is assigned by the chain when the block is appended
+                MiningJob mined = jobs.run(newBlock(message), MiningJobs.DEADLINE);
                 duration = System.currentTimeMillis() - start;
+                if (mined.getState() != MiningJob.State.DONE) {
+                    return createFailureResponse(mined.describe());
+                }
                 return createSuccessResponse("Total execution time to add this block was " + duration + " milliseconds", duration);
             case 2:
-                System.out.println("Verify entire chain");
+                Log.debug("Verify entire chain");
                 start = System.currentTimeMillis();
-                sb = new StringBuilder("Chain verification: " + blockChain.isChainValid());
-                System.out.println();
+                sb = new StringBuilder("Chain verification: " + blockChain.isChainValid(message.isFullScan()));
                 duration = System.currentTimeMillis() - start;
                 sb.append("\n").append("Total execution time to verify the chain was " + duration + " milliseconds");
                 return createSuccessResponse(sb.toString(), duration);
             case 3:
-                System.out.println("View the Blockchain");
-                sb = new StringBuilder("{\"ds_chain\": [");
-                for (int i = 0; i < blockChain.getChainSize(); i++) {
-                    if (i > 0) {
-                        sb.append(",");
-                    }
-                    sb.append(blockChain.getBlock(i).toString());
-                }
-                sb.append("], \"chainHash\":\"" + blockChain.getChainHash() + "\"");
-                return createSuccessResponse(sb.toString(), 0);
+                Log.debug("View the Blockchain");
+                // the codec renders the blocks, JSON clients still get the chain as one document
+                BlockChain.Snapshot snapshot = blockChain.snapshot(0, Integer.MAX_VALUE);
+                ResponseMessage view = createSuccessResponse(null, 0);
+                view.setBlocks(snapshot.getBlocks());
+                view.setChainHash(snapshot.getChainHash());
+                return view;
             case 4:
-                System.out.println("Corrupt the Blockchain");
+                Log.debug("Corrupt the Blockchain");
                 if (message.getIndex() < 0 || message.getIndex() >= blockChain.getChainSize() || message.getData() == null) {
                     return createFailureResponse("Invalid params");
                 }
 
-                Block block = blockChain.getBlock(message.getIndex());
-                if (message.getData().equals(block.getData())) {
+                if (!blockChain.setBlockData(message.getIndex(), message.getData())) {
                     return createFailureResponse("New data is equal to old");
                 } else {
-                    block.setData(message.getData());
                     return createSuccessResponse("Block " + message.getIndex() + " now holds " + message.getData(), 0);
                 }
             case 5:
-                System.out.println("Repair chain");
+                Log.debug("Repair chain");
                 start = System.currentTimeMillis();
                 blockChain.repairChain();
                 duration = System.currentTimeMillis() - start;
                 return createSuccessResponse(
                         "Total execution time required to repair the chain was " + duration + " milliseconds", 0);
+            case 7:
+                Log.debug("View a range of blocks");
+                if (message.getIndex() < 0 || message.getIndex() >= blockChain.getChainSize() || message.getCount() <= 0) {
+                    return createFailureResponse("Invalid params");
+                }
+                BlockChain.Snapshot range = blockChain.snapshot(message.getIndex(), Math.min(message.getCount(), MAX_PAGE));
+                ResponseMessage page = createSuccessResponse(null, 0);
+                page.setBlocks(range.getBlocks());
+                page.setChainHash(range.getChainHash());
+                // tell the client that there are blocks after this page
+                page.setMore(message.getIndex() + range.getBlocks().size() < blockChain.getChainSize());
+                return page;
+            case 10:
+                Log.debug("Prove a transaction");
+                if (message.getIndex() < 0 || message.getIndex() >= blockChain.getChainSize()) {
+                    return createFailureResponse("Invalid params");
+                }
+                return prove(blockChain.snapshot(message.getIndex(), 1).getBlocks().get(0), message);
+            case 9:
+                Log.debug("View server metrics");
+                return createSuccessResponse(metrics.render(blockChain, mempool), 0);
+            case 11:
+                Log.debug("Submit a transaction");
+                if (message.getData() == null) {
+                    return createFailureResponse("Invalid params");
+                }
+                String id = mempool.submit(message.getData());
+                // the data of the answer is the bare transaction ID
+                return id == null ? createFailureResponse("Mempool is full") : createSuccessResponse(id, 0);
+            case 12:
+                return confirmation(message).join();
+            case 13:
+                Log.debug("Submit a mining job");
+                if (!isValidBlock(message)) {
+                    return createFailureResponse("Invalid params");
+                }
+                // the count is the deadline of the job in milliseconds, 0 for the server's limit
+                MiningJob submitted = jobs.submit(newBlock(message), message.getCount());
+                return submitted == null ? createFailureResponse("Too many mining jobs")
+                        : createSuccessResponse(String.valueOf(submitted.getId()), 0);
+            case 14:
+            case 15:
+                Log.debug(message.getType() == 14 ? "View a mining job" : "Cancel a mining job");
+                MiningJob job = findJob(message.getData());
+                if (job == null) {
+                    return createFailureResponse("Unknown mining job");
+                }
+                if (message.getType() == 15 && !job.cancel()) {
+                    return createFailureResponse(job.describe());
+                }
+                return createSuccessResponse(job.describe(), 0);
+            case 16:
+            case 17:
+                Log.debug(message.getType() == 16 ? "View the transfers of an account" : "View the balance of an account");
+                if (message.getData() == null || message.getIndex() < 0) {
+                    return createFailureResponse("Invalid params");
+                }
+                // a balance request reads the ledger only, a history request also the blocks of its page
+                int blocks = message.getType() == 17 ? 0
+                        : message.getCount() <= 0 ? MAX_PAGE : Math.min(message.getCount(), MAX_PAGE);
+                Ledger.Statement statement = blockChain.statement(message.getData(), message.getIndex(), blocks);
+                if (statement == null) {
+                    return createFailureResponse("No transfers of " + message.getData());
+                }
+                sb = new StringBuilder();
+                sb.append(message.getData()).append(" has a balance of ").append(statement.getBalance())
+                        .append(" dscoin after transfers in ").append(statement.getBlocks()).append(" blocks");
+                for (String transfer : statement.getTransfers()) {
+                    sb.append("\n").append(transfer);
+                }
+                ResponseMessage account = createSuccessResponse(sb.toString(), 0);
+                account.setMore(message.getType() == 16 && statement.isMore());
+                return account;
+            case 18:
+                Log.debug("Find a block by hash");
+                Block found = blockChain.findBlock(message.getData());
+                if (found == null) {
+                    return createFailureResponse("Unknown block");
+                }
+                ResponseMessage lookup = createSuccessResponse(null, 0);
+                lookup.setBlocks(Collections.singletonList(found));
+                lookup.setChainHash(blockChain.getChainHash());
+                return lookup;
+            case 19:
+                Log.debug("Find a transaction by ID");
+                int[] holding = blockChain.findTransaction(message.getData());
+                if (holding == null) {
+                    return createFailureResponse("Unknown transaction");
+                }
+                sb = new StringBuilder("Transaction ").append(message.getData().trim())
+                        .append(holding.length == 1 ? " is in block " : " is in blocks ");
+                for (int i = 0; i < holding.length; i++) {
+                    sb.append(i == 0 ? "" : ", ").append(holding[i]);
+                }
+                return createSuccessResponse(sb.toString(), 0);
             case 6:
-                System.out.println("Visitor exit");
+                Log.debug("Visitor exit");
                 return new ResponseMessage();
             default:
                 return createFailureResponse("Invalid Option");
         }
     }
 
+    /**
+     * @param message - a request of type 1 or 13
+     * @return true if it holds a difficulty and a transaction or a list of transactions
+     */
+    private static boolean isValidBlock(RequestMessage message) {
+        List<String> transactions = message.getTransactions();
+        boolean batch = transactions != null && !transactions.isEmpty();
+        return message.getDifficulty() > 0 && (batch ? !transactions.contains(null) : message.getData() != null);
+    }
+
+    /**
+     * @param message - a valid request of type 1 or 13
+     * @return the block to add, a batch block if the request has a list of transactions
+     */
+    private static Block newBlock(RequestMessage message) {
+        List<String> transactions = message.getTransactions();
+        return transactions != null && !transactions.isEmpty()
+                ? new Block(0, blockChain.getTime(), transactions, message.getDifficulty())
+                : new Block(0, blockChain.getTime(), message.getData(), message.getDifficulty());
+    }
+
+    /**
+     * @param id - ID of a mining job as text
+     * @return the job, null if the ID is not a number or the job is unknown
+     */
+    private static MiningJob findJob(String id) {
+        try {
+            return id == null ? null : jobs.get(Long.parseLong(id.trim()));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Answer a confirmation request (type 12) for the transaction ID in the request's data.
+     * With a count above 0 the answer waits up to count milliseconds for the transaction's block,
+     * so clients can wait for their confirmation instead of polling.
+     * @param message - the request
+     * @return the answer, completed once the transaction is confirmed or the wait is over
+     */
+    static CompletableFuture<ResponseMessage> confirmation(RequestMessage message) {
+        Log.debug("Check a transaction");
+        String id = message.getData();
+        if (id == null) {
+            return CompletableFuture.completedFuture(createFailureResponse("Invalid params"));
+        }
+        if (!blockChain.isIndexed()) {
+            // the lookup on the chain waits for the index of a reopened chain, away from the caller
+            return CompletableFuture.supplyAsync(() -> mempool.confirmation(id))
+                    .thenCompose(confirmation -> confirmation(message, id, confirmation));
+        }
+        return confirmation(message, id, mempool.confirmation(id));
+    }
+
+    /**
+     * @param message - the confirmation request
+     * @param id - ID of the transaction
+     * @param confirmation - the transaction's confirmation from the mempool, null if it is unknown
+     * @return the answer, completed once the transaction is confirmed or the wait is over
+     */
+    private static CompletableFuture<ResponseMessage> confirmation(RequestMessage message, String id,
+                                                                  CompletableFuture<Integer> confirmation) {
+        if (confirmation == null) {
+            return CompletableFuture.completedFuture(createFailureResponse("Unknown transaction"));
+        }
+        CompletableFuture<Integer> waited = message.getCount() > 0
+                ? confirmation.copy().completeOnTimeout(-1, Math.min(message.getCount(), MAX_WAIT), TimeUnit.MILLISECONDS)
+                : CompletableFuture.completedFuture(confirmation.getNow(-1));
+        return waited.thenApply(index -> createSuccessResponse(index < 0
+                ? "Transaction " + id + " is pending"
+                : "Transaction " + id + " is confirmed in block " + index, 0));
+    }
+
+    /**
+     * Build the inclusion proof asked for by a type 10 request.
+     * The transaction is given by its text in the request's data, or by its position in count when there is no data.
+     * @param block - the block holding the transaction
+     * @param message - the request
+     * @return the proof and the Merkle root it leads to
+     */
+    private static ResponseMessage prove(Block block, RequestMessage message) {
+        byte[][] transactions = block.transactionBytes();
+        if (transactions == null) {
+            return createFailureResponse("Block " + block.getIndex() + " holds a single transaction and has no Merkle root");
+        }
+        int position = message.getCount();
+        if (message.getData() != null) {
+            byte[] wanted = message.getData().getBytes(StandardCharsets.UTF_8);
+            position = -1;
+            for (int i = 0; i < transactions.length && position < 0; i++) {
+                if (Arrays.equals(transactions[i], wanted)) {
+                    position = i;
+                }
+            }
+        }
+        if (position < 0 || position >= transactions.length) {
+            return createFailureResponse("Transaction not found in block " + block.getIndex());
+        }
+        List<String> proof = MerkleTree.proof(transactions, position);
+        ResponseMessage response = createSuccessResponse("Transaction " + position + " of " + transactions.length
+                + " in block " + block.getIndex() + "\nMerkle root: " + block.getMerkleRoot()
+                + "\nProof: " + String.join(" ", proof), 0);
+        response.setProof(proof);
+        response.setMerkleRoot(block.getMerkleRoot());
+        return response;
+    }
+
     private static ResponseMessage createSuccessResponse(String data, long duration) {
         return new ResponseMessage(true, data, duration, null);
     }
 
-    private static ResponseMessage createFailureResponse(String errMsg) {
+    /**
+     * Open the stream of blocks asked for by a type 8 request.
+     * The request's index is the first block and its count the number of blocks, 0 for all.
+     * @param message - the request
+     * @return the stream, or null if the params are invalid
+     */
+    static ChainStream openStream(RequestMessage message) {
+        Log.debug("Stream the Blockchain");
+        if (message.getIndex() < 0 || message.getIndex() >= blockChain.getChainSize() || message.getCount() < 0) {
+            return null;
+        }
+        return new ChainStream(blockChain, message.getIndex(), message.getCount());
+    }
+
+    static ResponseMessage createFailureResponse(String errMsg) {
         return new ResponseMessage(false, null, 0, errMsg);
     }
 
@@ -0,0 +1,196 @@
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * name: Enliang Wu
+ * email: enliangw@andrew.cmu.edu
+ *
+ * This class collects the metrics of the server: the number of requests, failures and a latency histogram
+ * of every request type, bytes received and sent, open connections, the chain size, the pending transactions
+ * and the mining work.
+ * The latency of a request is measured from the moment its frame has been read until its response
+ * has been handed to the socket (the last page, for a stream).
+ * Requests that can not be decoded are counted as type -1.
+ * Recording is lock-free, so it may be done by every worker and event loop at once.
+ * The metrics are rendered in the Prometheus text format, both for request type 9
+ * and for the scrape endpoint http://host:port/metrics, where the port is read from
+ * "blockchain.metrics.port" (default 6790, 0 turns the endpoint off).
+ */
+public class ServerMetrics {
+    static final int INVALID_TYPE = -1;
+
+    private static final String[] QUANTILES = {"0.5", "0.9", "0.99", "0.999"};
+
+    private final Map<Integer, TypeMetrics> types = new ConcurrentHashMap<>();
+    private final LongAdder bytesReceived = new LongAdder();
+    private final LongAdder bytesSent = new LongAdder();
+    private final AtomicInteger activeConnections = new AtomicInteger();
+    private final AtomicLong connections = new AtomicLong();
+
+    /**
+     * The counters of one request type
+     */
+    private static final class TypeMetrics {
+        private final LongAdder failures = new LongAdder();
+        private final LatencyHistogram latency = new LatencyHistogram();
+    }
+
+    public void connectionOpened() {
+        connections.incrementAndGet();
+        activeConnections.incrementAndGet();
+    }
+
+    public void connectionClosed() {
+        activeConnections.decrementAndGet();
+    }
+
+    /**
+     * @param bytes - size of a frame read from a client, header included
+     */
+    public void received(int bytes) {
+        bytesReceived.add(bytes);
+    }
+
+    /**
+     * @param bytes - size of a frame written to a client, header included
+     */
+    public void sent(int bytes) {
+        bytesSent.add(bytes);
+    }
+
+    /**
+     * Count one served request
+     * @param type - request type, INVALID_TYPE if the request could not be decoded
+     * @param success - whether the response was a success
+     * @param nanos - time from reading the request to writing its response
+     */
+    public void record(int type, boolean success, long nanos) {
+        TypeMetrics metrics = types.computeIfAbsent(type, t -> new TypeMetrics());
+        metrics.latency.record(nanos);
+        if (!success) {
+            metrics.failures.increment();
+        }
+    }
+
+    /**
+     * @param chain - the served chain, for its size
+     * @param mempool - the pool of submitted transactions, for its size
+     * @return all metrics in the Prometheus text format
+     */
+    public String render(BlockChain chain, Mempool mempool) {
+        StringBuilder sb = new StringBuilder();
+        Map<Integer, TypeMetrics> sorted = new TreeMap<>(types);
+
+        header(sb, "blockchain_requests_total", "counter", "Requests served, by request type");
+        for (Map.Entry<Integer, TypeMetrics> entry : sorted.entrySet()) {
+            sample(sb, "blockchain_requests_total", type(entry.getKey()), entry.getValue().latency.getCount());
+        }
+        header(sb, "blockchain_request_failures_total", "counter", "Requests answered with an error, by request type");
+        for (Map.Entry<Integer, TypeMetrics> entry : sorted.entrySet()) {
+            sample(sb, "blockchain_request_failures_total", type(entry.getKey()), entry.getValue().failures.sum());
+        }
+        header(sb, "blockchain_request_latency_seconds", "summary", "Time to serve a request, by request type");
+        for (Map.Entry<Integer, TypeMetrics> entry : sorted.entrySet()) {
+            String type = type(entry.getKey());
+            LatencyHistogram latency = entry.getValue().latency;
+            for (String quantile : QUANTILES) {
+                sample(sb, "blockchain_request_latency_seconds", type + ",quantile=\"" + quantile + "\"",
+                        seconds(latency.getValueAtPercentile(Double.parseDouble(quantile) * 100)));
+            }
+            sample(sb, "blockchain_request_latency_seconds_sum", type, seconds(latency.getTotal()));
+            sample(sb, "blockchain_request_latency_seconds_count", type, latency.getCount());
+        }
+        header(sb, "blockchain_request_latency_max_seconds", "gauge", "Slowest request since start up, by request type");
+        for (Map.Entry<Integer, TypeMetrics> entry : sorted.entrySet()) {
+            sample(sb, "blockchain_request_latency_max_seconds", type(entry.getKey()),
+                    seconds(entry.getValue().latency.getMax()));
+        }
+
+        header(sb, "blockchain_bytes_received_total", "counter", "Bytes of request frames read");
+        sample(sb, "blockchain_bytes_received_total", null, bytesReceived.sum());
+        header(sb, "blockchain_bytes_sent_total", "counter", "Bytes of response frames written");
+        sample(sb, "blockchain_bytes_sent_total", null, bytesSent.sum());
+        header(sb, "blockchain_connections_active", "gauge", "Open client connections");
+        sample(sb, "blockchain_connections_active", null, activeConnections.get());
+        header(sb, "blockchain_connections_total", "counter", "Client connections accepted");
+        sample(sb, "blockchain_connections_total", null, connections.get());
+
+        header(sb, "blockchain_chain_size", "gauge", "Blocks on the chain");
+        sample(sb, "blockchain_chain_size", null, chain.getChainSize());
+        header(sb, "blockchain_mempool_pending", "gauge", "Submitted transactions waiting for a block");
+        sample(sb, "blockchain_mempool_pending", null, mempool.size());
+
+        Miner miner = Miner.getDefault();
+        header(sb, "blockchain_mining_hashes_total", "counter", "Hashes computed by the miner");
+        sample(sb, "blockchain_mining_hashes_total", null, miner.getTotalHashes());
+        header(sb, "blockchain_mining_seconds_total", "counter", "Time the miner workers spent hashing");
+        sample(sb, "blockchain_mining_seconds_total", null, seconds(miner.getTotalBusyNanos()));
+        header(sb, "blockchain_mining_hashes_per_second", "gauge", "Recent hash rate of all miner workers");
+        sample(sb, "blockchain_mining_hashes_per_second", null, miner.getHashesPerSecond());
+        return sb.toString();
+    }
+
+    /**
+     * Serve the metrics over HTTP on "blockchain.metrics.port"
+     * @param chain - the served chain
+     * @param mempool - the pool of submitted transactions
+     * @return the started endpoint, or null if it is turned off
+     * @throws IOException if the port can not be opened
+     */
+    public HttpServer startEndpoint(BlockChain chain, Mempool mempool) throws IOException {
+        int port = Integer.getInteger("blockchain.metrics.port", 6790);
+        if (port <= 0) {
+            return null;
+        }
+        HttpServer endpoint = HttpServer.create(new InetSocketAddress(port), 0);
+        endpoint.createContext("/metrics", exchange -> {
+            byte[] body = render(chain, mempool).getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        // scrapes are rare, one thread serves them
+        endpoint.setExecutor(Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "metrics");
+            thread.setDaemon(true);
+            return thread;
+        }));
+        endpoint.start();
+        return endpoint;
+    }
+
+    private static void header(StringBuilder sb, String name, String kind, String help) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(' ').append(kind).append('\n');
+    }
+
+    private static void sample(StringBuilder sb, String name, String labels, Object value) {
+        sb.append(name);
+        if (labels != null) {
+            sb.append('{').append(labels).append('}');
+        }
+        sb.append(' ').append(value).append('\n');
+    }
+
+    private static String type(int type) {
+        return "type=\"" + type + "\"";
+    }
+
+    private static String seconds(long nanos) {
+        return String.format(Locale.ROOT, "%.9f", nanos / 1e9);
+    }
+}
@@ -0,0 +1,132 @@
+import java.nio.ByteBuffer;
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * name: Enliang Wu
+ * email: enliangw@andrew.cmu.edu
+ *
+ * This class checks that BinaryCodec gives back the messages and blocks it was given,
+ * and that it rejects truncated messages and forged lengths and counts with an IllegalArgumentException.
+ *
+ * usage: java BinaryCodecTest, a failed check throws an AssertionError
+ */
+public class BinaryCodecTest {
+    // a response starts with MAGIC, success, execution time and the lengths of data and errMsg
+    private static final int DATA_LENGTH = 1 + 1 + 8;
+
+    public static void main(String[] args) {
+        requestRoundTrip();
+        responseRoundTrip();
+        truncated();
+        forgedLengths();
+        System.out.println("BinaryCodecTest passed");
+    }
+
+    /**
+     * A request is decoded with the fields it was encoded with
+     */
+    private static void requestRoundTrip() {
+        RequestMessage request = new RequestMessage(1, 3, "Alice pays Bob 5 dscoin", 7);
+        byte[] bytes = MessageCodec.BINARY.encodeRequest(request);
+        check(MessageCodec.detect(bytes, 0, bytes.length) == MessageCodec.BINARY, "a binary request is detected");
+        RequestMessage decoded = MessageCodec.BINARY.decodeRequest(bytes, 0, bytes.length);
+        check(decoded.getType() == 1 && decoded.getDifficulty() == 3 && decoded.getIndex() == 7
+                && "Alice pays Bob 5 dscoin".equals(decoded.getData()), "the request fields are kept");
+    }
+
+    /**
+     * A response with a chain of blocks is decoded into equal blocks with the same hashes
+     */
+    private static void responseRoundTrip() {
+        List<Block> blocks = chain();
+        ResponseMessage decoded = roundTrip(response(blocks));
+        check(decoded.isSuccess() && decoded.getExecutionTime() == 42, "the response fields are kept");
+        check("chain".equals(decoded.getData()) && decoded.getErrMsg() == null, "the strings are kept, null too");
+        check(decoded.getBlocks().size() == blocks.size(), "every block is decoded");
+        for (int i = 0; i < blocks.size(); i++) {
+            Block block = blocks.get(i);
+            Block copy = decoded.getBlocks().get(i);
+            check(copy.getIndex() == block.getIndex() && copy.getCreated().equals(block.getCreated())
+                    && copy.getDifficulty() == block.getDifficulty(), "the block fields are kept");
+            check(String.valueOf(copy.getData()).equals(String.valueOf(block.getData())), "the block data is kept");
+            check(copy.getPreviousHash().equals(block.getPreviousHash()), "the previous hash is kept");
+            check(copy.getNonce().equals(block.getNonce()) && copy.getHash().equals(block.getHash()),
+                    "the proof of work is kept");
+        }
+        check(decoded.getChainHash().equals(blocks.get(blocks.size() - 1).getHash()), "the chain hash is kept");
+    }
+
+    /**
+     * A response cut anywhere inside its blocks is rejected
+     */
+    private static void truncated() {
+        byte[] bytes = MessageCodec.BINARY.encodeResponse(response(chain()));
+        for (int length = 1; length < bytes.length / 2; length++) {
+            expectRejected(Arrays.copyOf(bytes, length), "a response cut to " + length + " bytes is rejected");
+        }
+        expectRejected(new byte[]{'{', '}'}, "a JSON payload is not a binary message");
+    }
+
+    /**
+     * Lengths and counts larger than the bytes left are rejected before anything is allocated for them
+     */
+    private static void forgedLengths() {
+        byte[] bytes = MessageCodec.BINARY.encodeResponse(new ResponseMessage(true, null, 0, null));
+        ByteBuffer.wrap(bytes).putInt(DATA_LENGTH, Integer.MAX_VALUE);
+        expectRejected(bytes, "a string longer than the message is rejected");
+
+        bytes = MessageCodec.BINARY.encodeResponse(new ResponseMessage(true, null, 0, null));
+        // the block count follows the two null strings
+        ByteBuffer.wrap(bytes).putInt(DATA_LENGTH + 8, Integer.MAX_VALUE);
+        expectRejected(bytes, "more blocks than the message can hold are rejected");
+
+        bytes = MessageCodec.BINARY.encodeResponse(response(chain()));
+        ByteBuffer.wrap(bytes).putInt(DATA_LENGTH + 4 + "chain".length() + 4 + 4 + 4 + 8, -7);
+        expectRejected(bytes, "a negative block data length is rejected");
+    }
+
+    /**
+     * @return a genesis block and two blocks mined on top of it
+     */
+    private static List<Block> chain() {
+        Block genesis = new Block(0, new Timestamp(System.currentTimeMillis()), "", 1);
+        genesis.setPreviousHash("");
+        genesis.proofOfWork();
+        Block payment = new Block(1, new Timestamp(System.currentTimeMillis()), "Alice pays Bob 5 dscoin", 1);
+        payment.setPreviousHash(genesis.getHash());
+        payment.proofOfWork();
+        Block empty = new Block(2, new Timestamp(System.currentTimeMillis()), (String) null, 1);
+        empty.setPreviousHash(payment.getHash());
+        empty.proofOfWork();
+        return List.of(genesis, payment, empty);
+    }
+
+    private static ResponseMessage response(List<Block> blocks) {
+        ResponseMessage response = new ResponseMessage(true, "chain", 42, null);
+        response.setBlocks(blocks);
+        response.setChainHash(blocks.get(blocks.size() - 1).getHash());
+        return response;
+    }
+
+    private static ResponseMessage roundTrip(ResponseMessage response) {
+        byte[] bytes = MessageCodec.BINARY.encodeResponse(response);
+        return MessageCodec.BINARY.decodeResponse(bytes, 0, bytes.length);
+    }
+
+    private static void expectRejected(byte[] bytes, String expectation) {
+        try {
+            MessageCodec.BINARY.decodeResponse(bytes, 0, bytes.length);
+        } catch (IllegalArgumentException expected) {
+            return;
+        }
+        throw new AssertionError("Expected that " + expectation);
+    }
+
+    private static void check(boolean condition, String expectation) {
+        if (!condition) {
+            throw new AssertionError("Expected that " + expectation);
+        }
+    }
+}
@@ -0,0 +1,150 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.function.IntFunction;
+import java.util.stream.Stream;
+
+/**
+ * name: Enliang Wu
+ * email: enliangw@andrew.cmu.edu
+ *
+ * This class checks that blocks without data are indexed with no transaction IDs,
+ * on a chain in memory, after corrupting such a block and on a chain reopened from its store,
+ * and that the ledger keeps long posting lists in order whatever order the blocks are booked in.
+ *
+ * usage: java BlockIndexTest, a failed check throws an AssertionError
+ */
+public class BlockIndexTest {
+
+    public static void main(String[] args) throws Exception {
+        transactionIds();
+        chainInMemory();
+        chainInStore();
+        postingsInAnyOrder();
+        System.out.println("BlockIndexTest passed");
+    }
+
+    /**
+     * A single transaction block without data has no transaction IDs
+     */
+    private static void transactionIds() {
+        check(BlockIndex.transactionIds(block(0, (String) null)).isEmpty(), "a block without data has no IDs");
+        List<byte[]> ids = BlockIndex.transactionIds(block(0, "Alice pays Bob 5 dscoin"));
+        check(ids.size() == 1 && BlockHasher.toHex(ids.get(0)).equals(Mempool.transactionId("Alice pays Bob 5 dscoin")),
+                "a block has the ID of its data");
+    }
+
+    /**
+     * A block without data can be added to and corrupted on a chain in memory, the other blocks are still found
+     */
+    private static void chainInMemory() {
+        BlockChain chain = new BlockChain();
+        fill(chain);
+        expectFound(chain);
+        check(chain.setBlockData(1, "Carol pays Dave 2 dscoin"), "the block without data is corrupted");
+        check(Arrays.equals(chain.findTransaction(Mempool.transactionId("Carol pays Dave 2 dscoin")), new int[]{1}),
+                "the new data of the block is found");
+        check(chain.statement("Dave", 0, 10).getBalance() == 2, "the new data of the block is booked");
+    }
+
+    /**
+     * A chain with a block without data is reopened from its store and indexed again
+     */
+    private static void chainInStore() throws IOException {
+        Path dir = Files.createTempDirectory("blockindextest");
+        try {
+            try (BlockStore store = BlockStore.open(dir)) {
+                fill(new BlockChain(store));
+            }
+            try (BlockStore store = BlockStore.open(dir)) {
+                BlockChain chain = new BlockChain(store);
+                check(chain.getChainSize() == 4, "the stored blocks are reopened");
+                expectFound(chain);
+                check(chain.findBlock(chain.getChainHash()) != null, "the latest block is found by its hash");
+                check(chain.setBlockData(2, "Alice pays Erin 4 dscoin"), "a reopened block is corrupted");
+                check(chain.findBlock(chain.getBlock(2).getHash()) != null,
+                        "the corrupted block is found by its new hash");
+                check(chain.statement("Erin", 0, 10).getBalance() == 4, "the new data of the block is booked");
+            }
+        } finally {
+            try (Stream<Path> files = Files.walk(dir)) {
+                files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+            }
+        }
+    }
+
+    /**
+     * Positions booked in random order, some of them taken back again, are paged in ascending order
+     */
+    private static void postingsInAnyOrder() {
+        int blocks = 1000;
+        List<Integer> order = new ArrayList<>();
+        for (int i = 0; i < blocks; i++) {
+            order.add(i);
+        }
+        Collections.shuffle(order, new Random(42));
+        IntFunction<Block> chain = i -> block(i, "Alice pays Bob" + i % 7 + " 1 dscoin");
+        Ledger ledger = new Ledger(ByteBuffer::allocate);
+        for (int i : order) {
+            ledger.add(i, Ledger.transfers(chain.apply(i)));
+        }
+        for (int i = 0; i < blocks; i += 3) {
+            ledger.remove(i, Ledger.transfers(chain.apply(i)));
+        }
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < blocks; i++) {
+            if (i % 3 != 0) {
+                expected.add("Block " + i + ": Alice pays Bob" + i % 7 + " 1 dscoin");
+            }
+        }
+        List<String> paged = new ArrayList<>();
+        for (int start = 0; ; start += 100) {
+            Ledger.Statement page = ledger.statement("Alice", start, 100, chain);
+            check(page.getBlocks() == expected.size(), "every booked block is counted once");
+            check(page.getBalance() == -expected.size(), "the balance is what is left booked");
+            paged.addAll(page.getTransfers());
+            if (!page.isMore()) {
+                break;
+            }
+        }
+        check(paged.equals(expected), "the pages hold every booked block in ascending order");
+        check(ledger.statement("Nobody", 0, 10, i -> null) == null, "an unknown account has no statement");
+    }
+
+    /**
+     * Add a genesis block, a block without data and two blocks with transfers
+     */
+    private static void fill(BlockChain chain) {
+        chain.addBlock(block(0, ""));
+        chain.addBlock(block(1, (String) null));
+        chain.addBlock(block(2, "Alice pays Bob 5 dscoin"));
+        chain.addBlock(new Block(3, new Timestamp(System.currentTimeMillis()),
+                List.of("Bob pays Carol 3 dscoin", "Alice pays Bob 5 dscoin"), 1));
+    }
+
+    private static void expectFound(BlockChain chain) {
+        check(Arrays.equals(chain.findTransaction(Mempool.transactionId("Alice pays Bob 5 dscoin")), new int[]{2, 3}),
+                "a transaction is found in all its blocks");
+        check(Arrays.equals(chain.findTransaction(Mempool.transactionId("Bob pays Carol 3 dscoin")), new int[]{3}),
+                "a transaction of a batch is found");
+        check(chain.statement("Alice", 0, 10).getBalance() == -10, "the transfers are booked");
+    }
+
+    private static Block block(int index, String data) {
+        return new Block(index, new Timestamp(System.currentTimeMillis()), data, 1);
+    }
+
+    private static void check(boolean condition, String expectation) {
+        if (!condition) {
+            throw new AssertionError("Expected that " + expectation);
+        }
+    }
+}
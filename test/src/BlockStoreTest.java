@@ -0,0 +1,148 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * name: Enliang Wu
+ * email: enliangw@andrew.cmu.edu
+ *
+ * This class checks that a BlockStore reopens what was appended to it, the latest record of a block winning,
+ * and that a record torn or garbled at the end of the log is dropped and overwritten by the next append,
+ * with one segment and with several.
+ *
+ * usage: java BlockStoreTest, a failed check throws an AssertionError
+ */
+public class BlockStoreTest {
+
+    public static void main(String[] args) throws IOException {
+        reopen();
+        tornRecord();
+        garbledRecord();
+        // small segments, so the torn record is in the last of several segments
+        System.setProperty("blockchain.store.segment.bytes", "200");
+        tornRecord();
+        System.out.println("BlockStoreTest passed");
+    }
+
+    /**
+     * Appended blocks are read back after reopening, a block appended again reads as its latest record
+     */
+    private static void reopen() throws IOException {
+        Path dir = Files.createTempDirectory("blockstoretest");
+        try {
+            try (BlockStore store = BlockStore.open(dir)) {
+                fill(store, 5);
+                store.append(block(2, "Bob pays Carol 1 dscoin"));
+                expectBlocks(store, 5, "Bob pays Carol 1 dscoin");
+            }
+            try (BlockStore store = BlockStore.open(dir)) {
+                expectBlocks(store, 5, "Bob pays Carol 1 dscoin");
+            }
+        } finally {
+            delete(dir);
+        }
+    }
+
+    /**
+     * A record cut short by a crash is dropped, the next append takes its place
+     */
+    private static void tornRecord() throws IOException {
+        Path dir = Files.createTempDirectory("blockstoretest");
+        try {
+            try (BlockStore store = BlockStore.open(dir)) {
+                fill(store, 5);
+            }
+            try (FileChannel log = FileChannel.open(lastSegment(dir), StandardOpenOption.WRITE)) {
+                log.truncate(log.size() - 3);
+            }
+            try (BlockStore store = BlockStore.open(dir)) {
+                expectBlocks(store, 4, null);
+                store.append(block(4, "Alice pays Bob 4 dscoin"));
+            }
+            try (BlockStore store = BlockStore.open(dir)) {
+                // a record appended after the torn bytes would be lost again
+                expectBlocks(store, 5, null);
+            }
+        } finally {
+            delete(dir);
+        }
+    }
+
+    /**
+     * A complete record whose CRC does not match is dropped like a torn one
+     */
+    private static void garbledRecord() throws IOException {
+        Path dir = Files.createTempDirectory("blockstoretest");
+        try {
+            try (BlockStore store = BlockStore.open(dir)) {
+                fill(store, 5);
+            }
+            Path last = lastSegment(dir);
+            try (FileChannel log = FileChannel.open(last, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                // flip a byte of the last record's payload, just before its 4 byte CRC
+                ByteBuffer b = ByteBuffer.allocate(1);
+                log.read(b, log.size() - 5);
+                b.put(0, (byte) ~b.get(0)).rewind();
+                log.write(b, log.size() - 5);
+            }
+            try (BlockStore store = BlockStore.open(dir)) {
+                expectBlocks(store, 4, null);
+            }
+        } finally {
+            delete(dir);
+        }
+    }
+
+    private static void fill(BlockStore store, int count) throws IOException {
+        for (int i = 0; i < count; i++) {
+            store.append(block(i, "Alice pays Bob " + i + " dscoin"));
+        }
+    }
+
+    /**
+     * @param size - expected number of blocks
+     * @param second - expected data of block 2 if it was appended again, null if it was not
+     */
+    private static void expectBlocks(BlockStore store, int size, String second) throws IOException {
+        check(store.size() == size, "the store holds " + size + " blocks, not " + store.size());
+        for (int i = 0; i < size; i++) {
+            String data = i == 2 && second != null ? second : "Alice pays Bob " + i + " dscoin";
+            Block block = store.read(i);
+            check(block.getIndex() == i && block.getData().equals(data), "block " + i + " reads back");
+        }
+    }
+
+    private static Path lastSegment(Path dir) throws IOException {
+        List<Path> segments = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*.log")) {
+            files.forEach(segments::add);
+        }
+        segments.sort(null);
+        return segments.get(segments.size() - 1);
+    }
+
+    private static Block block(int index, String data) {
+        return new Block(index, new Timestamp(System.currentTimeMillis()), data, 1);
+    }
+
+    private static void delete(Path dir) throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    private static void check(boolean condition, String expectation) {
+        if (!condition) {
+            throw new AssertionError("Expected that " + expectation);
+        }
+    }
+}
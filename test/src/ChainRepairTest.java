@@ -0,0 +1,131 @@
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Timestamp;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/**
+ * name: Enliang Wu
+ * email: enliangw@andrew.cmu.edu
+ *
+ * This class checks that repairing the chain leaves the blocks before the first invalid block alone,
+ * mines the broken suffix again with its data kept, and stores the repaired blocks.
+ * Repairs are made in batches of 4 blocks, so a suffix is swapped in over several batches.
+ *
+ * usage: java ChainRepairTest, a failed check throws an AssertionError
+ */
+public class ChainRepairTest {
+    private static final int BLOCKS = 30;
+
+    public static void main(String[] args) throws IOException {
+        // read once when BlockChain is loaded, so set before it is used
+        System.setProperty("blockchain.repair.batch", "4");
+        System.setProperty("blockchain.cache.blocks", "4");
+        corruptedData();
+        brokenLinks();
+        chainInStore();
+        System.out.println("ChainRepairTest passed");
+    }
+
+    /**
+     * A block with new data is mined again along with the blocks after it, the blocks before it are kept
+     */
+    private static void corruptedData() {
+        BlockChain chain = new BlockChain();
+        fill(chain);
+        String[] hashes = hashes(chain);
+        chain.setBlockData(10, "Mallory pays Mallory 100 dscoin");
+        chain.repairChain();
+        expectRepaired(chain, hashes, 10);
+        check(chain.getBlock(10).getData().equals("Mallory pays Mallory 100 dscoin"), "the new data is kept");
+    }
+
+    /**
+     * Two broken suffixes are both repaired, starting with the lower one, the blocks between them are kept
+     */
+    private static void brokenLinks() {
+        BlockChain chain = new BlockChain();
+        fill(chain);
+        String[] hashes = hashes(chain);
+        chain.setBlockData(BLOCKS - 1, "Mallory pays Mallory 1 dscoin");
+        chain.setBlockData(20, "Mallory pays Mallory 2 dscoin");
+        // mined again by hand, so only the link of its child is broken
+        chain.getBlock(20).proofOfWork();
+        BigInteger nonce = chain.getBlock(20).getNonce();
+        chain.repairChain();
+        expectRepaired(chain, hashes, 20);
+        check(chain.getBlock(20).getNonce().equals(nonce), "a block with a proper proof of work keeps its nonce");
+    }
+
+    /**
+     * Repaired blocks are stored, a reopened chain is valid, also where they are no longer cached
+     */
+    private static void chainInStore() throws IOException {
+        Path dir = Files.createTempDirectory("chainrepairtest");
+        try {
+            String[] hashes;
+            try (BlockStore store = BlockStore.open(dir)) {
+                BlockChain chain = new BlockChain(store);
+                fill(chain);
+                hashes = hashes(chain);
+                chain.setBlockData(5, "Mallory pays Mallory 100 dscoin");
+                chain.repairChain();
+                expectRepaired(chain, hashes, 5);
+                hashes = hashes(chain);
+            }
+            try (BlockStore store = BlockStore.open(dir)) {
+                BlockChain chain = new BlockChain(store);
+                check(chain.isChainValid(true).equals("TRUE"), "the reopened chain is valid");
+                for (int i = 0; i < BLOCKS; i++) {
+                    check(chain.getBlock(i).getHash().equals(hashes[i]), "repaired block " + i + " is stored");
+                }
+            }
+        } finally {
+            try (Stream<Path> files = Files.walk(dir)) {
+                files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+            }
+        }
+    }
+
+    private static void fill(BlockChain chain) {
+        for (int i = 0; i < BLOCKS; i++) {
+            String data = "Alice pays Bob " + i + " dscoin";
+            chain.addBlock(new Block(i, new Timestamp(System.currentTimeMillis()), data, 1));
+        }
+    }
+
+    private static String[] hashes(BlockChain chain) {
+        String[] hashes = new String[chain.getChainSize()];
+        for (int i = 0; i < hashes.length; i++) {
+            hashes[i] = chain.getBlock(i).getHash();
+        }
+        return hashes;
+    }
+
+    /**
+     * @param hashes - hashes of the blocks before they were corrupted
+     * @param first - position of the first block that was corrupted
+     */
+    private static void expectRepaired(BlockChain chain, String[] hashes, int first) {
+        check(chain.isChainValid(true).equals("TRUE"), "the repaired chain is valid");
+        check(chain.getChainSize() == hashes.length, "no block is added or dropped");
+        for (int i = 0; i < first; i++) {
+            check(chain.getBlock(i).getHash().equals(hashes[i]), "block " + i + " before the broken suffix is kept");
+        }
+        check(!chain.getBlock(first + 1).getHash().equals(hashes[first + 1]),
+                "the child of the broken block is relinked");
+        for (int i = first; i < hashes.length; i++) {
+            Block block = chain.getBlock(i);
+            check(block.getIndex() == i && block.getDifficulty() == 1, "block " + i + " keeps its place");
+        }
+        check(chain.getChainHash().equals(chain.getLatestBlock().getHash()), "the chain hash follows the latest block");
+    }
+
+    private static void check(boolean condition, String expectation) {
+        if (!condition) {
+            throw new AssertionError("Expected that " + expectation);
+        }
+    }
+}
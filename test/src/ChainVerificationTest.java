@@ -0,0 +1,112 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Timestamp;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/**
+ * name: Enliang Wu
+ * email: enliangw@andrew.cmu.edu
+ *
+ * This class checks that an incremental verification finds what a full scan finds after a block changes,
+ * on a chain in memory and on a chain reopened from its store,
+ * and that it skips the blocks below the verified mark.
+ *
+ * usage: java ChainVerificationTest, a failed check throws an AssertionError
+ */
+public class ChainVerificationTest {
+
+    public static void main(String[] args) throws IOException {
+        changedBlocks();
+        verifiedMark();
+        chainInStore();
+        System.out.println("ChainVerificationTest passed");
+    }
+
+    /**
+     * A corrupted block is found by the next verification, and the chain is valid again once it is restored
+     */
+    private static void changedBlocks() {
+        BlockChain chain = new BlockChain();
+        fill(chain, 20);
+        expectValid(chain);
+        check(chain.setBlockData(5, "Mallory pays Mallory 100 dscoin"), "a block is corrupted");
+        expectInvalid(chain);
+        check(chain.setBlockData(5, "Alice pays Bob 5 dscoin"), "the block is restored");
+        expectValid(chain);
+        chain.addBlock(block(20, "Alice pays Bob 20 dscoin"));
+        expectValid(chain);
+    }
+
+    /**
+     * A change the chain is not told about is below the verified mark, so only a full scan finds it
+     */
+    private static void verifiedMark() {
+        BlockChain chain = new BlockChain();
+        fill(chain, 20);
+        expectValid(chain);
+        Block block = chain.getBlock(7);
+        // unlinked, the block does not lower the verified mark when it changes
+        block.chain = null;
+        block.setData("Mallory pays Mallory 100 dscoin");
+        check(chain.isChainValid().equals("TRUE"), "the verified blocks are skipped");
+        check(!chain.isChainValid(true).equals("TRUE"), "a full scan checks every block");
+        block.chain = chain;
+        block.setData("Alice pays Bob 7 dscoin");
+        expectValid(chain);
+    }
+
+    /**
+     * Blocks decoded from the store are verified again once they are corrupted, and repaired
+     */
+    private static void chainInStore() throws IOException {
+        Path dir = Files.createTempDirectory("chainverificationtest");
+        try {
+            try (BlockStore store = BlockStore.open(dir)) {
+                fill(new BlockChain(store), 10);
+            }
+            try (BlockStore store = BlockStore.open(dir)) {
+                BlockChain chain = new BlockChain(store);
+                expectValid(chain);
+                check(chain.setBlockData(3, "Mallory pays Mallory 100 dscoin"), "a stored block is corrupted");
+                expectInvalid(chain);
+                chain.repairChain();
+                expectValid(chain);
+            }
+        } finally {
+            try (Stream<Path> files = Files.walk(dir)) {
+                files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+            }
+        }
+    }
+
+    private static void fill(BlockChain chain, int count) {
+        for (int i = 0; i < count; i++) {
+            chain.addBlock(block(i, "Alice pays Bob " + i + " dscoin"));
+        }
+    }
+
+    private static void expectValid(BlockChain chain) {
+        check(chain.isChainValid().equals("TRUE"), "the verification passes");
+        check(chain.isChainValid(true).equals("TRUE"), "a full scan passes");
+        check(chain.isChainValid().equals("TRUE"), "a repeated verification passes");
+    }
+
+    private static void expectInvalid(BlockChain chain) {
+        String failure = chain.isChainValid();
+        check(!failure.equals("TRUE"), "the verification fails");
+        check(failure.equals(chain.isChainValid(true)), "a full scan reports the same failure");
+        check(failure.equals(chain.isChainValid()), "a repeated verification reports the same failure");
+    }
+
+    private static Block block(int index, String data) {
+        return new Block(index, new Timestamp(System.currentTimeMillis()), data, 1);
+    }
+
+    private static void check(boolean condition, String expectation) {
+        if (!condition) {
+            throw new AssertionError("Expected that " + expectation);
+        }
+    }
+}
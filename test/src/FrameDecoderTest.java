@@ -0,0 +1,106 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * name: Enliang Wu
+ * email: enliangw@andrew.cmu.edu
+ *
+ * This class checks that FrameDecoder takes pipelined frames out in order, grows only for an incomplete frame
+ * and rejects frames longer than FrameCodec accepts.
+ *
+ * usage: java FrameDecoderTest, a failed check throws an AssertionError
+ */
+public class FrameDecoderTest {
+
+    public static void main(String[] args) throws Exception {
+        completeFramesFillTheBuffer();
+        largeFrameGrowsTheBuffer();
+        framesArriveByteByByte();
+        invalidLength();
+        System.out.println("FrameDecoderTest passed");
+    }
+
+    /**
+     * A full buffer holding complete frames is not grown, the frames are taken out first
+     */
+    private static void completeFramesFillTheBuffer() throws IOException {
+        FrameDecoder decoder = new FrameDecoder(16);
+        decoder.buffer().put(FrameCodec.encode(bytes("abcd"))).put(FrameCodec.encode(bytes("efgh")));
+        check(decoder.buffer() == null, "a full buffer with a complete frame is not read into");
+        check(Arrays.equals(decoder.next(), bytes("abcd")), "the first frame is taken out");
+        check(decoder.buffer().capacity() == 16, "the buffer did not grow");
+        check(Arrays.equals(decoder.next(), bytes("efgh")), "the second frame is taken out");
+        check(decoder.next() == null, "no frame is left");
+    }
+
+    /**
+     * A frame longer than the buffer makes it grow up to the frame, never below the bytes buffered
+     */
+    private static void largeFrameGrowsTheBuffer() throws IOException {
+        byte[] payload = new byte[100];
+        Arrays.fill(payload, (byte) 7);
+        ByteBuffer frame = FrameCodec.encode(payload);
+        FrameDecoder decoder = new FrameDecoder(16);
+        while (frame.hasRemaining()) {
+            ByteBuffer buffer = decoder.buffer();
+            check(buffer != null && buffer.hasRemaining(), "an incomplete frame leaves room to read");
+            check(buffer.capacity() <= FrameCodec.HEADER_LENGTH + payload.length, "the buffer grows up to the frame");
+            int n = Math.min(buffer.remaining(), frame.remaining());
+            buffer.put(frame.slice().limit(n));
+            frame.position(frame.position() + n);
+            if (frame.hasRemaining()) {
+                check(decoder.next() == null, "an incomplete frame is not taken out");
+            }
+        }
+        check(Arrays.equals(decoder.next(), payload), "the large frame is taken out whole");
+    }
+
+    /**
+     * Pipelined frames arriving one byte at a time are taken out in order
+     */
+    private static void framesArriveByteByByte() throws IOException {
+        ByteBuffer bytes = ByteBuffer.allocate(64);
+        for (String payload : new String[]{"x", "", "pipelined"}) {
+            bytes.put(FrameCodec.encode(bytes(payload)));
+        }
+        bytes.flip();
+        FrameDecoder decoder = new FrameDecoder(4);
+        StringBuilder taken = new StringBuilder();
+        while (bytes.hasRemaining()) {
+            ByteBuffer buffer = decoder.buffer();
+            if (buffer != null) {
+                buffer.put(bytes.get());
+            }
+            for (byte[] payload = decoder.next(); payload != null; payload = decoder.next()) {
+                taken.append('[').append(new String(payload, StandardCharsets.UTF_8)).append(']');
+            }
+        }
+        check(taken.toString().equals("[x][][pipelined]"), "every frame is taken out in order");
+    }
+
+    /**
+     * A frame longer than FrameCodec accepts is rejected before its payload is buffered
+     */
+    private static void invalidLength() {
+        FrameDecoder decoder = new FrameDecoder(8);
+        try {
+            decoder.buffer().putInt(FrameCodec.MAX_FRAME + 1).putInt(0);
+            decoder.buffer();
+            throw new AssertionError("Expected that an oversized frame is rejected");
+        } catch (IOException expected) {
+            // the connection is closed by the caller
+        }
+    }
+
+    private static byte[] bytes(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void check(boolean condition, String expectation) {
+        if (!condition) {
+            throw new AssertionError("Expected that " + expectation);
+        }
+    }
+}
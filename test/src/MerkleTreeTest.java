@@ -0,0 +1,121 @@
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * name: Enliang Wu
+ * email: enliangw@andrew.cmu.edu
+ *
+ * This class checks that every transaction of a batch is proven against its block's Merkle root
+ * with about log2(n) hashes, and that proofs of other transactions, other trees or malformed proofs are refused.
+ *
+ * usage: java MerkleTreeTest, a failed check throws an AssertionError
+ */
+public class MerkleTreeTest {
+
+    public static void main(String[] args) {
+        everyPosition();
+        blockRoot();
+        noSharedRoots();
+        malformedProofs();
+        System.out.println("MerkleTreeTest passed");
+    }
+
+    /**
+     * Every transaction of trees of 1 to 17 leaves is proven, and only against its own tree
+     */
+    private static void everyPosition() {
+        String otherRoot = BlockHasher.toHex(MerkleTree.root(bytes(transactions(5, "other"))));
+        for (int n = 1; n <= 17; n++) {
+            List<String> transactions = transactions(n, "tx");
+            String root = BlockHasher.toHex(MerkleTree.root(bytes(transactions)));
+            int depth = 32 - Integer.numberOfLeadingZeros(n - 1);
+            for (int i = 0; i < n; i++) {
+                List<String> proof = MerkleTree.proof(bytes(transactions), i);
+                check(proof.size() <= depth, "a proof holds at most " + depth + " hashes");
+                String transaction = transactions.get(i);
+                check(MerkleTree.verify(transaction, proof, root), "transaction " + i + " of " + n + " is proven");
+                check(MerkleTree.verify(transaction, proof, root.toUpperCase()), "the root is case insensitive");
+                check(!MerkleTree.verify(transaction, proof, otherRoot), "a proof does not fit another tree");
+                check(!MerkleTree.verify(transaction + " ", proof, root), "a changed transaction is refused");
+                if (n > 1) {
+                    String other = transactions.get((i + 1) % n);
+                    check(!MerkleTree.verify(other, proof, root), "a proof does not fit another transaction");
+                }
+            }
+        }
+    }
+
+    /**
+     * A batch block commits to the root of its transactions, which the proofs lead to
+     */
+    private static void blockRoot() {
+        List<String> transactions = transactions(6, "Alice pays Bob");
+        Block block = new Block(1, new Timestamp(System.currentTimeMillis()), transactions, 1);
+        check(block.getMerkleRoot().equals(BlockHasher.toHex(MerkleTree.root(bytes(transactions)))),
+                "the block's root is the root of its transactions");
+        for (int i = 0; i < transactions.size(); i++) {
+            check(MerkleTree.verify(transactions.get(i), MerkleTree.proof(block.transactionBytes(), i),
+                    block.getMerkleRoot()), "transaction " + i + " is proven against its block");
+        }
+        check(new Block(1, block.getCreated(), "Alice pays Bob 0", 1).getMerkleRoot() == null,
+                "a single transaction block has no root");
+    }
+
+    /**
+     * Carrying an odd node up instead of pairing it with itself keeps roots apart
+     */
+    private static void noSharedRoots() {
+        List<String> three = transactions(3, "tx");
+        List<String> four = new ArrayList<>(three);
+        four.add(three.get(2));
+        check(!Arrays.equals(MerkleTree.root(bytes(three)), MerkleTree.root(bytes(four))),
+                "a repeated last transaction changes the root");
+        List<String> one = List.of("tx 0");
+        List<String> two = transactions(2, "tx");
+        check(!Arrays.equals(MerkleTree.root(bytes(one)), MerkleTree.root(bytes(two))),
+                "a second leaf changes the root");
+    }
+
+    /**
+     * Proofs with unknown sides, bad hexadecimal or missing hashes are refused instead of failing
+     */
+    private static void malformedProofs() {
+        List<String> transactions = transactions(4, "tx");
+        String root = BlockHasher.toHex(MerkleTree.root(bytes(transactions)));
+        List<String> proof = MerkleTree.proof(bytes(transactions), 0);
+        String hash = proof.get(0).substring(2);
+        for (String step : new String[]{"X:" + hash, "L:zz", "R:", "L", ""}) {
+            List<String> bad = new ArrayList<>(proof);
+            bad.set(0, step);
+            check(!MerkleTree.verify(transactions.get(0), bad, root), "the step \"" + step + "\" is refused");
+        }
+        check(!MerkleTree.verify(transactions.get(0), proof.subList(1, proof.size()), root),
+                "a short proof is refused");
+        check(!MerkleTree.verify(transactions.get(0), List.of(), root), "an empty proof is refused");
+    }
+
+    private static List<String> transactions(int n, String prefix) {
+        List<String> transactions = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            transactions.add(prefix + " " + i);
+        }
+        return transactions;
+    }
+
+    private static byte[][] bytes(List<String> transactions) {
+        byte[][] bytes = new byte[transactions.size()][];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = transactions.get(i).getBytes(StandardCharsets.UTF_8);
+        }
+        return bytes;
+    }
+
+    private static void check(boolean condition, String expectation) {
+        if (!condition) {
+            throw new AssertionError("Expected that " + expectation);
+        }
+    }
+}
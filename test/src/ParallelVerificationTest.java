@@ -0,0 +1,90 @@
+import java.sql.Timestamp;
+import java.util.Random;
+
+/**
+ * name: Enliang Wu
+ * email: enliangw@andrew.cmu.edu
+ *
+ * This class checks that a validation split into ranges on the verifier pool reports the failure
+ * a sequential walk over the chain finds first, with its message, wherever the corrupted blocks are.
+ * The ranges are made 8 blocks long, so a chain of a few hundred blocks is split many times.
+ *
+ * usage: java ParallelVerificationTest, a failed check throws an AssertionError
+ */
+public class ParallelVerificationTest {
+    private static final int BLOCKS = 300;
+
+    public static void main(String[] args) {
+        // read once when BlockChain is loaded, so set before it is used
+        System.setProperty("blockchain.verify.chunk", "8");
+        System.setProperty("blockchain.verify.threads", "4");
+        BlockChain chain = new BlockChain();
+        for (int i = 0; i < BLOCKS; i++) {
+            String data = "Alice pays Bob " + i + " dscoin";
+            chain.addBlock(new Block(i, new Timestamp(System.currentTimeMillis()), data, 1));
+        }
+        check(chain.isChainValid(true).equals("TRUE"), "a valid chain passes");
+
+        // the link between the two halves of the whole chain is only checked when they are joined
+        remine(chain, BLOCKS / 2 - 1);
+        expectSequentialResult(chain);
+
+        Random random = new Random(42);
+        for (int round = 0; round < 50; round++) {
+            chain.repairChain();
+            check(chain.isChainValid(true).equals("TRUE"), "a repaired chain passes");
+            for (int n = 1 + random.nextInt(3); n > 0; n--) {
+                int i = random.nextInt(BLOCKS);
+                if (random.nextBoolean()) {
+                    remine(chain, i);
+                } else {
+                    chain.setBlockData(i, "Mallory pays Mallory " + random.nextInt(1000) + " dscoin");
+                }
+            }
+            expectSequentialResult(chain);
+        }
+        System.out.println("ParallelVerificationTest passed");
+    }
+
+    /**
+     * Corrupt a block and mine it again, so its proof of work holds and only its child's link breaks
+     */
+    private static void remine(BlockChain chain, int i) {
+        chain.setBlockData(i, "Mallory pays Mallory " + i + " dscoin");
+        chain.getBlock(i).proofOfWork();
+    }
+
+    private static void expectSequentialResult(BlockChain chain) {
+        String expected = sequential(chain);
+        check(chain.isChainValid(true).equals(expected), "a full scan reports " + expected);
+        check(chain.isChainValid().equals(expected), "a verification reports " + expected);
+    }
+
+    /**
+     * @return the result of checking every block in order, as isChainValid reports it
+     */
+    private static String sequential(BlockChain chain) {
+        Block parent = null;
+        for (int i = 0; i < chain.getChainSize(); i++) {
+            Block block = chain.getBlock(i);
+            String target = new String(new char[block.getDifficulty()]).replace('\0', '0');
+            if (!block.getHash().startsWith(target)) {
+                return "FALSE\nImproper hash on node " + i + " Does not begin with " + target;
+            }
+            if (i == chain.getChainSize() - 1 && !block.getHash().equals(chain.getChainHash())) {
+                return "FALSE\nBlock chain's hash not equal to hash of block";
+            }
+            if (parent != null && !parent.getHash().equals(block.getPreviousHash())) {
+                return "Block's hash doesn't equal to hash of parent";
+            }
+            parent = block;
+        }
+        return "TRUE";
+    }
+
+    private static void check(boolean condition, String expectation) {
+        if (!condition) {
+            throw new AssertionError("Expected that " + expectation);
+        }
+    }
+}